@@ -8,9 +8,12 @@ import android.widget.ArrayAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import se.kodsnack.util.Episode;
+import se.kodsnack.util.EpisodeDownloader;
 
 /**
  * Subclass of {@link android.widget.ArrayAdapter} that holds a list of
@@ -19,7 +22,9 @@ import se.kodsnack.util.Episode;
  * @author Erik Jansson<erikjansson90@gmail.com>
  */
 public class EpisodeListAdapter extends ArrayAdapter<Episode> {
-    private LayoutInflater inflater;
+    private LayoutInflater    inflater;
+    private EpisodeDownloader downloader; // For showing the state of downloads, or null.
+    private final Map<String, Integer> queue = new HashMap<>(); // Places in the queue by URL.
 
     public EpisodeListAdapter(Context context) {
         super(context, R.layout.episode_item);
@@ -27,17 +32,65 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
     }
 
     /**
-     * Replace the data in this adapter.
+     * Replace the data in this adapter. Call notifyDataSetChanged() when done.
      *
      * @param data The new list of episodes.
      */
     public void setData(List<Episode> data) {
+        // Changes are batched and the list notified once by the caller, since this is called
+        // several times while the feed is streaming in.
+        setNotifyOnChange(false);
         clear();
         if (data != null) {
             addAll(data);
         }
     }
 
+    /**
+     * Sets the downloader whose downloads are shown in the list. Call
+     * notifyDataSetChanged() when done.
+     *
+     * @param downloader The downloader, or null to not show downloads.
+     */
+    public void setDownloader(EpisodeDownloader downloader) {
+        this.downloader = downloader;
+    }
+
+    /**
+     * Sets the queue whose places are shown in the list. Call
+     * notifyDataSetChanged() when done.
+     *
+     * @param queue The queued episodes, the next one first, or null to not
+     *              show the queue.
+     */
+    public void setQueue(List<Episode> queue) {
+        this.queue.clear();
+        if (queue != null) {
+            for (int i = 0; i < queue.size(); i++) {
+                this.queue.put(queue.get(i).url, i);
+            }
+        }
+    }
+
+    /**
+     * Returns the place of an episode in the queue last set.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The index of the episode, 0 for the next one, or -1 if it
+     *         isn't queued.
+     */
+    public int getQueueIndex(String url) {
+        final Integer index = queue.get(url);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Returns the length of the queue last set.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final LinearLayout view;
@@ -49,7 +102,9 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
             viewHolder = new ViewHolder();
             view = (LinearLayout) inflater.inflate(R.layout.episode_item, parent, false);
 
-            viewHolder.title = (TextView) view.findViewById(R.id.title);
+            viewHolder.title         = (TextView) view.findViewById(R.id.title);
+            viewHolder.downloadState = (TextView) view.findViewById(R.id.download_state);
+            viewHolder.queuePosition = (TextView) view.findViewById(R.id.queue_position);
 
             view.setTag(viewHolder);
         } else {
@@ -59,10 +114,54 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
 
         episode = getItem(position);
         viewHolder.title.setText(episode.name);
+        bindDownloadState(viewHolder.downloadState, episode);
+        bindQueuePosition(viewHolder.queuePosition, episode);
 
         return view;
     }
 
+    /**
+     * Shows the state of an episode's download. The downloader keeps its
+     * state in memory, so this is cheap enough to do for every row.
+     */
+    private void bindDownloadState(TextView view, Episode episode) {
+        final EpisodeDownloader.State state = downloader != null
+                ? downloader.getState(episode.url) : EpisodeDownloader.State.NONE;
+        switch (state) {
+            case QUEUED:
+                view.setText(R.string.download_queued);
+                break;
+            case DOWNLOADING:
+                final int progress = downloader.getProgress(episode.url);
+                if (progress >= 0) {
+                    view.setText(getContext().getString(R.string.download_progress, progress));
+                } else {
+                    view.setText(R.string.downloading);
+                }
+                break;
+            case DOWNLOADED:
+                view.setText(R.string.downloaded);
+                break;
+            default:
+                view.setVisibility(View.GONE);
+                return;
+        }
+        view.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Shows the place of an episode in the queue, counting from 1.
+     */
+    private void bindQueuePosition(TextView view, Episode episode) {
+        final int index = getQueueIndex(episode.url);
+        if (index < 0) {
+            view.setVisibility(View.GONE);
+            return;
+        }
+        view.setText(getContext().getString(R.string.queue_position, index + 1));
+        view.setVisibility(View.VISIBLE);
+    }
+
     /**
      * Private view holder class that caches the findViewById() result since
      * it's expensive to perform view lookups every time a new list element
@@ -70,5 +169,7 @@ public class EpisodeListAdapter extends ArrayAdapter<Episode> {
      */
     private class ViewHolder {
         private TextView title;
+        private TextView downloadState;
+        private TextView queuePosition;
     }
 }
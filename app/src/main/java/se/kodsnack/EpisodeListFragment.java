@@ -10,14 +10,19 @@ import android.os.IBinder;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.view.ContextMenu;
 import android.view.LayoutInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.Toast;
 
 import java.util.List;
 
 import se.kodsnack.util.Episode;
+import se.kodsnack.util.EpisodeDownloader;
 
 /**
  * Subclass of {@link android.support.v4.app.ListFragment} that
@@ -26,9 +31,11 @@ import se.kodsnack.util.Episode;
  * @author Erik Jansson<erikjansson90@gmail.com>
  */
 public class EpisodeListFragment extends ListFragment
-        implements LoaderManager.LoaderCallbacks<List<Episode>> {
+        implements LoaderManager.LoaderCallbacks<List<Episode>>, PlayerService.DownloadCallback,
+                   PlayerService.QueueCallback {
     private EpisodeListAdapter episodeAdapter; // List adapter that holds the data.
     private PlayerService      playerService;  // The service playing the stream.
+    private List<Episode>      episodes;       // The loaded episodes, or null.
 
     /**
      * The connection to the PlayerService.
@@ -36,10 +43,20 @@ public class EpisodeListFragment extends ListFragment
     private final ServiceConnection playerConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
             playerService = ((PlayerService.LocalBinder) service).getService();
+            playerService.registerDownloadCallback(EpisodeListFragment.this);
+            episodeAdapter.setDownloader(playerService.getDownloader());
+            episodeAdapter.notifyDataSetChanged();
+            // Sets the queue as soon as it has been read.
+            playerService.registerQueueCallback(EpisodeListFragment.this);
+            if (episodes != null) {
+                playerService.setEpisodes(episodes);
+            }
         }
 
         public void onServiceDisconnected(ComponentName className) {
             playerService = null;
+            episodeAdapter.setDownloader(null);
+            episodeAdapter.setQueue(null);
         }
     };
 
@@ -57,6 +74,83 @@ public class EpisodeListFragment extends ListFragment
         return inflater.inflate(R.layout.fragment_episode_list, container, false);
     }
 
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        registerForContextMenu(getListView());
+    }
+
+    @Override
+    public void onCreateContextMenu(ContextMenu menu, View v,
+                                    ContextMenu.ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+        if (playerService == null) {
+            return;
+        }
+
+        final int position = ((AdapterView.AdapterContextMenuInfo) menuInfo).position;
+        final Episode episode = episodeAdapter.getItem(position);
+        final EpisodeDownloader.State state = playerService.getDownloader().getState(episode.url);
+
+        getActivity().getMenuInflater().inflate(R.menu.episode_context, menu);
+        menu.setHeaderTitle(episode.name);
+        final int index = episodeAdapter.getQueueIndex(episode.url);
+        menu.findItem(R.id.enqueue).setVisible(index < 0);
+        menu.findItem(R.id.dequeue).setVisible(index >= 0);
+        menu.findItem(R.id.move_up).setVisible(index > 0);
+        menu.findItem(R.id.move_down).setVisible(index >= 0
+                && index < episodeAdapter.getQueueSize() - 1);
+        menu.findItem(R.id.download).setVisible(state == EpisodeDownloader.State.NONE);
+        menu.findItem(R.id.cancel_download).setVisible(state == EpisodeDownloader.State.QUEUED
+                || state == EpisodeDownloader.State.DOWNLOADING);
+        menu.findItem(R.id.delete_download).setVisible(
+                state == EpisodeDownloader.State.DOWNLOADED);
+    }
+
+    @Override
+    public boolean onContextItemSelected(MenuItem item) {
+        // Context menu selections are passed to every fragment, make sure it's ours.
+        if (!getUserVisibleHint() || playerService == null
+                || !(item.getMenuInfo() instanceof AdapterView.AdapterContextMenuInfo)) {
+            return super.onContextItemSelected(item);
+        }
+
+        final int position = ((AdapterView.AdapterContextMenuInfo) item.getMenuInfo()).position;
+        final Episode episode = episodeAdapter.getItem(position);
+        switch (item.getItemId()) {
+            case R.id.enqueue:
+                playerService.enqueue(episode);
+                break;
+            case R.id.dequeue:
+                playerService.dequeue(episode.url);
+                break;
+            case R.id.move_up:
+            case R.id.move_down:
+                final int index = episodeAdapter.getQueueIndex(episode.url);
+                if (index >= 0) {
+                    playerService.moveInQueue(index, item.getItemId() == R.id.move_up
+                            ? index - 1 : index + 1);
+                }
+                break;
+            case R.id.play_unplayed:
+                playerService.playAllUnplayed();
+                break;
+            case R.id.download:
+                playerService.download(episode.url);
+                break;
+            case R.id.cancel_download:
+                playerService.cancelDownload(episode.url);
+                break;
+            case R.id.delete_download:
+                playerService.deleteDownload(episode.url);
+                break;
+            default:
+                return super.onContextItemSelected(item);
+        }
+        episodeAdapter.notifyDataSetChanged();
+        return true;
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         final Episode episode = episodeAdapter.getItem(position);
@@ -83,6 +177,8 @@ public class EpisodeListFragment extends ListFragment
     public void onDestroy() {
         super.onDestroy();
         if (playerService != null) {
+            playerService.unregisterDownloadCallback(this);
+            playerService.unregisterQueueCallback(this);
             getActivity().unbindService(playerConnection);
             playerService = null;
         }
@@ -104,10 +200,39 @@ public class EpisodeListFragment extends ListFragment
 
     @Override
     public void onLoadFinished(Loader<List<Episode>> loader, List<Episode> data) {
+        episodes = data;
         episodeAdapter.setData(data);
         episodeAdapter.notifyDataSetChanged();
+        if (playerService != null) {
+            playerService.setEpisodes(data);
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<List<Episode>> loader) { }
+
+    @Override
+    public void onDownloadProgress(String url, long bytes, long total) {
+        episodeAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onDownloadFinished(String url) {
+        episodeAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onDownloadFailed(String url, Throwable t) {
+        episodeAdapter.notifyDataSetChanged();
+        if (getActivity() != null) {
+            Toast.makeText(getActivity(), R.string.download_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public void onQueueChanged(List<Episode> queue) {
+        // Looked up once here rather than in the queue for every row.
+        episodeAdapter.setQueue(queue);
+        episodeAdapter.notifyDataSetChanged();
+    }
 }
@@ -2,42 +2,103 @@ package se.kodsnack;
 
 import android.support.v4.content.AsyncTaskLoader;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
 
 import se.kodsnack.util.AtomParser;
 import se.kodsnack.util.Episode;
+import se.kodsnack.util.EpisodeCache;
+import se.kodsnack.util.FeedFetcher;
 
 /**
  * Subclass of {@link android.support.v4.content.AsyncTaskLoader} that
  * fetches and parses the Kodsnack Atom feed in the background.
  *
+ * The episodes parsed the last time are kept in an {@link EpisodeCache}. On a
+ * cold start the cached episodes are delivered first and the feed is then
+ * fetched again in the background. The refreshed list is only delivered if
+ * it differs from the cached one.
+ *
+ * When there is nothing cached, the episodes are delivered in batches while
+ * the feed is still being downloaded so that the list can show the newest
+ * episodes right away.
+ *
  * @author Erik Jansson<erikjansson90@gmail.com>
  */
 public class EpisodeLoader extends AsyncTaskLoader<List<Episode>> {
     /** Logger tag. */
     private static final String TAG = EpisodeLoader.class.getSimpleName();
 
-    private List<Episode> episodes; // The list of episodes from the Atom feed.
+    /** URL of Kodsnack's feed. */
+    private static final String FEED_URL = "http://feedpress.me/kodsnack";
+
+    /** Name of the file (in the cache dir) holding the last parsed episodes. */
+    private static final String CACHE_FILE = "episodes.cache";
+
+    /** Name of the file (in the cache dir) holding the feed's HTTP validators. */
+    private static final String VALIDATOR_FILE = "episodes.validators";
+
+    /** Number of episodes in the first partial delivery, about a screenful. */
+    private static final int FIRST_BATCH = 10;
+
+    private final EpisodeCache  cache;      // On-disk cache of the last parsed episodes.
+    private final FeedFetcher   fetcher;    // Conditionally fetches the feed.
+    private List<Episode>       episodes;   // The list of episodes from the Atom feed.
+    private boolean             isFresh;    // Whether episodes has been refreshed from the feed.
+    private boolean             isStale;    // Whether the delivered episodes came from the cache.
+    private final Handler       handler;    // Handler for delivering partial results.
 
     public EpisodeLoader(Context context) {
         super(context);
+        cache   = new EpisodeCache(new File(context.getCacheDir(), CACHE_FILE));
+        fetcher = new FeedFetcher(FEED_URL, new File(context.getCacheDir(), VALIDATOR_FILE));
+        handler = new Handler(Looper.getMainLooper());
     }
 
     @Override
     public List<Episode> loadInBackground() {
+        // On a cold start, serve whatever we have on disk first. deliverResult() will kick off
+        // the refresh once the cached episodes have been handed to the UI.
+        if (episodes == null) {
+            episodes = cache.read();
+            if (episodes != null) {
+                isStale = true;
+                return episodes;
+            }
+        }
+
         // Check if we have already fetched the episodes.
-        if (episodes != null) {
+        if (isFresh) {
             return episodes;
         }
 
         try {
-            episodes = AtomParser.parse("http://feedpress.me/kodsnack");
+            // With nothing on screen yet, show the episodes as they are parsed.
+            final AtomParser.EpisodeListener listener =
+                    episodes == null ? new PartialDelivery() : null;
+            final FeedFetcher.Result result = fetcher.fetch(episodes, listener);
+            isFresh = true;
+            Log.d(TAG, "Feed fetched: " + result.source);
+            // Returning the very same list again keeps the LoaderManager from calling
+            // onLoadFinished() a second time when nothing has changed.
+            if (result.source == FeedFetcher.Source.DOWNLOADED
+                    && !result.episodes.equals(episodes)) {
+                episodes = result.episodes;
+                cache.write(episodes);
+            }
+            // Only now that the episodes are on disk may the validators say so.
+            if (result.source != FeedFetcher.Source.HIT) {
+                fetcher.saveValidators();
+            }
         } catch (IOException e) {
             Log.e(TAG, e.toString());
         } catch (XmlPullParserException | ParseException e) {
@@ -47,8 +108,48 @@ public class EpisodeLoader extends AsyncTaskLoader<List<Episode>> {
         return episodes;
     }
 
+    @Override
+    public void deliverResult(List<Episode> data) {
+        super.deliverResult(data);
+        // The delivered episodes came from the disk cache, revalidate them against the feed.
+        if (isStale && isStarted()) {
+            isStale = false;
+            onContentChanged();
+        }
+    }
+
     @Override
     protected void onStartLoading() {
         forceLoad();
     }
+
+    /**
+     * Collects episodes on the loading thread and delivers them to the UI in
+     * batches, the first one as soon as a screenful has been parsed and then
+     * in batches of doubling size to keep the number of list updates down.
+     */
+    private class PartialDelivery implements AtomParser.EpisodeListener {
+        private final List<Episode> parsed    = new ArrayList<>(); // Episodes parsed so far.
+        private int                 nextBatch = FIRST_BATCH;       // Size of the next delivery.
+
+        @Override
+        public void onEpisode(Episode episode) {
+            parsed.add(episode);
+            if (parsed.size() < nextBatch) {
+                return;
+            }
+            nextBatch *= 2;
+
+            final List<Episode> partial = new ArrayList<>(parsed);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The complete result is posted after this, so it always wins.
+                    if (isStarted()) {
+                        deliverResult(partial);
+                    }
+                }
+            });
+        }
+    }
 }
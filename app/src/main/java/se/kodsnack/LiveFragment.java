@@ -12,13 +12,12 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import se.kodsnack.util.LiveStatus;
 
 /**
  * A fragment for playing the live stream.
@@ -26,9 +25,13 @@ import org.json.JSONObject;
 public class LiveFragment extends Fragment implements PlayerService.PlayerCallback {
     private static final String TAG = LiveFragment.class.getSimpleName();
 
+    /** How far the rewind button goes back (ms). */
+    private static final long REWIND_STEP = 60 * 1000;
+
     private ProgressBar     progressBar;    // Progress bar in the UI.
     private TextView        statusText;     // Status text in the UI.
     private ImageView       imageLogo;      // The big logo in the UI.
+    private View            liveControls;   // Rewind and catch up buttons.
     private PlayerService   playerService;  // The service actually playing the stream.
     private int             numListeners;   // The number of listeners to the stream.
 
@@ -69,6 +72,27 @@ public class LiveFragment extends Fragment implements PlayerService.PlayerCallba
         progressBar = (ProgressBar) root.findViewById(R.id.loading_progressbar);
         statusText = (TextView) root.findViewById(R.id.offline_text);
         imageLogo = (ImageView) root.findViewById(R.id.logo);
+        liveControls = root.findViewById(R.id.live_controls);
+
+        final Button rewindButton = (Button) root.findViewById(R.id.rewind_button);
+        rewindButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                final long behind = playerService != null ? playerService.getLiveBehind() : -1;
+                if (behind >= 0) {
+                    playerService.seekLive(behind + REWIND_STEP);
+                }
+            }
+        });
+        final Button catchUpButton = (Button) root.findViewById(R.id.catch_up_button);
+        catchUpButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (playerService != null && playerService.getLiveBehind() >= 0) {
+                    playerService.seekLive(0);
+                }
+            }
+        });
 
         return root;
     }
@@ -108,6 +132,15 @@ public class LiveFragment extends Fragment implements PlayerService.PlayerCallba
         statusText.setVisibility(View.GONE);
     }
 
+    /**
+     * Shows the rewind and catch up buttons while the live stream is
+     * prepared.
+     */
+    private void updateLiveControls() {
+        final boolean live = playerService != null && playerService.getLiveBehind() >= 0;
+        liveControls.setVisibility(live ? View.VISIBLE : View.GONE);
+    }
+
     private void updateStatusText(String status) {
         if (numListeners != -1) {
             status += "\n" + getString(R.string.num_listeners) + numListeners;
@@ -122,18 +155,24 @@ public class LiveFragment extends Fragment implements PlayerService.PlayerCallba
     public void onPrepared() {
         // Show text that show is live.
         updateStatusText(getString(R.string.live));
+        updateLiveControls();
     }
 
     @Override
-    public void onPlaying() { }
+    public void onPlaying() {
+        updateLiveControls();
+    }
 
     @Override
-    public void onPaused() { }
+    public void onPaused() {
+        updateLiveControls();
+    }
 
     @Override
     public void onStopped() {
         numListeners = -1;
         updateStatusText(getString(R.string.offline));
+        updateLiveControls();
     }
 
     @Override
@@ -146,33 +185,23 @@ public class LiveFragment extends Fragment implements PlayerService.PlayerCallba
         if (t != null) {
             Log.e(TAG, t.toString());
         }
+        numListeners = -1;
         updateStatusText(getString(R.string.offline));
+        updateLiveControls();
     }
 
     @Override
-    public void onJsonInfo(JSONObject info) {
-        try {
-            JSONObject icestats = info.getJSONObject("icestats");
-            if (icestats.has("source")) {
-                JSONObject source = icestats.getJSONObject("source");
-
-                // Try to find a title or fall back to the server name as title.
-                String title = source.has("title") ? source.getString("title")
-                        : source.getString("server_name");
-                numListeners = source.has("listeners") ? source.getInt("listeners") : -1;
-                updateStatusText(getString(R.string.live));
-
-                // Update UI according to JSON info.
-                if (title.toLowerCase().contains("appsnack")) {
-                    imageLogo.setImageResource(R.drawable.appsnack_large);
-                } else {
-                    imageLogo.setImageResource(R.drawable.kodsnack_large);
-                }
+    public void onLiveStatus(LiveStatus status) {
+        if (status.isLive) {
+            numListeners = status.listeners;
+            updateStatusText(getString(R.string.live));
+
+            // Update UI according to the status.
+            if (status.show == LiveStatus.Show.APPSNACK) {
+                imageLogo.setImageResource(R.drawable.appsnack_large);
+            } else {
+                imageLogo.setImageResource(R.drawable.kodsnack_large);
             }
-        } catch (JSONException e) {
-            numListeners = -1;
-            updateStatusText(getString(R.string.offline));
-            Log.w(TAG, e.toString());
         }
     }
 
@@ -0,0 +1,48 @@
+package se.kodsnack;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import se.kodsnack.util.LiveStatus;
+import se.kodsnack.util.LiveStatusDecoder;
+
+/**
+ * Volley request for Icecast's JSON status that decodes the response
+ * straight into a {@link LiveStatus} with {@link LiveStatusDecoder}, on
+ * Volley's network thread and without building a JSONObject.
+ */
+public class LiveStatusRequest extends Request<LiveStatus> {
+    private final Response.Listener<LiveStatus> listener; // Listener for the decoded status.
+
+    public LiveStatusRequest(String url, Response.Listener<LiveStatus> listener,
+                             Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        this.listener = listener;
+        // The status is stale as soon as it arrives, no point in writing it to the disk cache.
+        setShouldCache(false);
+    }
+
+    @Override
+    protected Response<LiveStatus> parseNetworkResponse(NetworkResponse response) {
+        try {
+            // The body is small, a StringReader over it is cheaper than an InputStreamReader
+            // with its 8 kB buffer.
+            final String body = new String(response.data,
+                                           HttpHeaderParser.parseCharset(response.headers));
+            return Response.success(LiveStatusDecoder.decode(new StringReader(body)), null);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(LiveStatus status) {
+        listener.onResponse(status);
+    }
+}
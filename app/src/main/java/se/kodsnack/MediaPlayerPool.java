@@ -0,0 +1,64 @@
+package se.kodsnack;
+
+import android.media.MediaPlayer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps MediaPlayers that aren't in use for reuse, so that switching between
+ * the playing player and the one preparing the next item doesn't allocate a
+ * new player (and its native resources) every time.
+ *
+ * Not thread safe; meant to be used from the playback thread only.
+ */
+final class MediaPlayerPool {
+    /**
+     * Creates and sets up new players.
+     */
+    interface Factory {
+        MediaPlayer create();
+    }
+
+    /** Number of unused players kept, the rest are released. */
+    private static final int MAX_IDLE = 1;
+
+    private final Factory            factory; // Creates players when there are none to reuse.
+    private final Deque<MediaPlayer> idle;    // Players that are reset and not in use.
+
+    MediaPlayerPool(Factory factory) {
+        this.factory = factory;
+        this.idle    = new ArrayDeque<>(MAX_IDLE);
+    }
+
+    /**
+     * Returns a player in the idle state, reused if possible.
+     */
+    MediaPlayer obtain() {
+        final MediaPlayer player = idle.poll();
+        return player != null ? player : factory.create();
+    }
+
+    /**
+     * Resets a player that's no longer used and keeps it for reuse, or
+     * releases it if enough players are kept already.
+     */
+    void recycle(MediaPlayer player) {
+        if (idle.size() < MAX_IDLE) {
+            player.reset();
+            idle.push(player);
+        } else {
+            player.release();
+        }
+    }
+
+    /**
+     * Releases all unused players.
+     */
+    void clear() {
+        for (MediaPlayer player : idle) {
+            player.release();
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,163 @@
+package se.kodsnack;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.view.View;
+import android.widget.RemoteViews;
+
+/**
+ * Shows what's playing in the player's notification.
+ *
+ * Posting the notification is a call to the system, which then inflates its
+ * views all over again. The renderer therefore keeps what it last posted
+ * and only posts when something visible has changed, at most once per
+ * {@link #MIN_INTERVAL}; changes in between are posted together at the end
+ * of it. The progress through an episode is shown in
+ * {@link #PROGRESS_STEPS} steps, so that it only causes a post when the bar
+ * actually moves.
+ *
+ * Every post gets new RemoteViews, since RemoteViews keep every change ever
+ * made to them and send all of them along with each post.
+ *
+ * Must be used from the main thread.
+ */
+final class NotificationRenderer {
+    /** Shortest time between two posts (ms). */
+    private static final long MIN_INTERVAL = 1000;
+
+    /** Number of steps of the progress bar. */
+    private static final int PROGRESS_STEPS = 100;
+
+    private final Context              context;       // For creating the views.
+    private final int                  id;            // ID of the notification.
+    private final NotificationManager  manager;       // Manager for posting the notification.
+    private final Notification.Builder builder;       // Builder for the notification.
+    private final PendingIntent        stop;          // Sent by the close button.
+    private final PendingIntent        toggle;        // Sent by the play/pause button.
+    private final Handler              handler;       // For posting later.
+    private String                     title;         // Title to show.
+    private boolean                    playing;       // Whether to show that it's playing.
+    private int                        progress;      // Progress to show, -1 for none.
+    private boolean                    shown;         // Whether the notification is shown.
+    private String                     shownTitle;    // Title last posted.
+    private boolean                    shownPlaying;  // Playing state last posted.
+    private int                        shownProgress; // Progress last posted.
+    private long                       lastPostAt;    // When the notification was last posted.
+
+    /**
+     * Creates a renderer.
+     *
+     * @param context The context.
+     * @param id      ID of the notification.
+     * @param content Sent when the notification is clicked.
+     * @param stop    Sent when the close button is clicked.
+     * @param toggle  Sent when the play/pause button is clicked.
+     */
+    NotificationRenderer(Context context, int id, PendingIntent content, PendingIntent stop,
+                         PendingIntent toggle) {
+        this.context  = context;
+        this.id       = id;
+        this.manager  = (NotificationManager) context.getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        this.builder  = new Notification.Builder(context)
+                .setOngoing(true)
+                .setSmallIcon(R.drawable.kodsnack)
+                .setContentIntent(content);
+        this.stop     = stop;
+        this.toggle   = toggle;
+        this.handler  = new Handler();
+        this.progress = -1;
+    }
+
+    void setTitle(String title) {
+        this.title = title;
+    }
+
+    void setPlaying(boolean playing) {
+        this.playing = playing;
+    }
+
+    /**
+     * Sets the progress through what's playing.
+     *
+     * @param position The position (ms).
+     * @param duration The duration (ms), 0 or less to not show any progress.
+     */
+    void setProgress(long position, long duration) {
+        progress = duration > 0
+                ? (int) (Math.max(0, Math.min(position, duration)) * PROGRESS_STEPS / duration)
+                : -1;
+    }
+
+    /**
+     * Posts the notification if anything has changed since it was last
+     * posted, now or when the minimum interval has passed.
+     */
+    void update() {
+        if (!isChanged()) {
+            return;
+        }
+
+        handler.removeCallbacks(post);
+        final long wait = lastPostAt + MIN_INTERVAL - SystemClock.uptimeMillis();
+        if (wait > 0) {
+            handler.postDelayed(post, wait);
+        } else {
+            post.run();
+        }
+    }
+
+    /**
+     * Builds the notification as it should look now, e.g. for
+     * startForeground(). It's taken to be posted.
+     */
+    Notification build() {
+        final RemoteViews views = new RemoteViews(context.getPackageName(),
+                                                  R.layout.notification_layout);
+        views.setOnClickPendingIntent(R.id.kill_button, stop);
+        views.setOnClickPendingIntent(R.id.play_pause_button, toggle);
+        views.setImageViewResource(R.id.play_pause_button,
+                                   playing ? R.drawable.pause : R.drawable.play);
+        views.setTextViewText(R.id.subtitle, title);
+        if (progress >= 0) {
+            views.setViewVisibility(R.id.progress, View.VISIBLE);
+            views.setProgressBar(R.id.progress, PROGRESS_STEPS, progress, false);
+        } else {
+            views.setViewVisibility(R.id.progress, View.GONE);
+        }
+
+        shown         = true;
+        shownTitle    = title;
+        shownPlaying  = playing;
+        shownProgress = progress;
+        lastPostAt    = SystemClock.uptimeMillis();
+        return builder.setContent(views).build();
+    }
+
+    /**
+     * Removes the notification.
+     */
+    void cancel() {
+        handler.removeCallbacks(post);
+        manager.cancel(id);
+        shown = false;
+    }
+
+    private boolean isChanged() {
+        return !shown || playing != shownPlaying || progress != shownProgress
+                || !TextUtils.equals(title, shownTitle);
+    }
+
+    private final Runnable post = new Runnable() {
+        public void run() {
+            if (isChanged()) {
+                manager.notify(id, build());
+            }
+        }
+    };
+}
@@ -8,17 +8,14 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.os.IBinder;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import se.kodsnack.ui.PlayPauseButton;
+import se.kodsnack.util.LiveStatus;
 
 /**
  * A {@link Fragment} subclass that handles the play control at the bottom
@@ -27,6 +24,7 @@ import se.kodsnack.ui.PlayPauseButton;
 public class PlayControlFragment extends Fragment implements PlayerService.PlayerCallback,
         PlayPauseButton.OnClickListener {
     /* Logger tag. */
+    @SuppressWarnings("UnusedDeclaration")
     private static final String TAG = PlayControlFragment.class.getSimpleName();
 
     private ImageView       logo;               // Image of playing stream.
@@ -137,21 +135,10 @@ public class PlayControlFragment extends Fragment implements PlayerService.Playe
     }
 
     @Override
-    public void onJsonInfo(JSONObject info) {
-        try {
-            JSONObject icestats = info.getJSONObject("icestats");
-            if (icestats.has("source")) {
-                JSONObject source = icestats.getJSONObject("source");
-
-                // Try to find a title or fall back to the server name as title.
-                String title = source.has("title") ? source.getString("title")
-                                                   : source.getString("server_name");
-
-                // Update UI (replacing logo with appsnack's if title says so).
-                updateUI(title);
-            }
-        } catch (JSONException e) {
-            Log.w(TAG, e.toString());
+    public void onLiveStatus(LiveStatus status) {
+        if (status.isLive) {
+            // Update UI (replacing logo with appsnack's if title says so).
+            updateUI(status.getDisplayTitle());
         }
     }
 
@@ -1,37 +1,65 @@
 package se.kodsnack;
 
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.RemoteViews;
 
-import com.android.volley.Request;
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
 import com.android.volley.toolbox.Volley;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import se.kodsnack.util.Episode;
+import se.kodsnack.util.CallbackRegistry;
+import se.kodsnack.util.EpisodeDownloader;
+import se.kodsnack.util.LiveStatus;
+import se.kodsnack.util.MediaCache;
+import se.kodsnack.util.PlaybackQueue;
+import se.kodsnack.util.PlaybackStateMachine;
+import se.kodsnack.util.PlaybackStateMachine.Event;
+import se.kodsnack.util.PlaybackStateMachine.State;
+import se.kodsnack.util.PrefetchPolicy;
+import se.kodsnack.util.StreamProxy;
+import se.kodsnack.util.PollScheduler;
+import se.kodsnack.util.PositionJournal;
 
+/**
+ * Service that plays the live stream and episodes, and keeps track of the
+ * live status and downloads.
+ *
+ * All MediaPlayer calls are made on a playback thread, so that slow calls
+ * like reset() and setDataSource() never block the UI. The public methods
+ * queue commands to that thread, where a {@link PlaybackStateMachine} drops
+ * the ones that aren't allowed in the current state. Changes of the state are
+ * passed back to the main thread, where the callbacks are called. Changes
+ * that come in a burst are passed on together, as one change.
+ */
 public class PlayerService extends Service implements MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener,
-        Response.Listener<JSONObject>, Response.ErrorListener {
+        MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener, MediaPlayer.OnCompletionListener,
+        Response.Listener<LiveStatus>, Response.ErrorListener {
     /* Logger tag. */
     private static final String TAG = PlayerService.class.getSimpleName();
 
@@ -44,32 +72,140 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
     private static final String ACTION_STOP = "se.kodsnack.STOP";
     private static final String ACTION_TOGGLE_PLAYING = "se.kodsnack.TOGGLE_PLAYING";
 
-    private MediaPlayer          mediaPlayer;         // MediaPlayer that plays the live stream.
-    private boolean              isRunning;           // Whether this service is running or not.
-    private boolean              isPreparing;         // Whether MediaPlayer is preparing a stream.
-    private boolean              isPrepared;          // Whether MediaPlayer is done preparing.
-    private LocalBinder          binder;              // For communication with clients.
-    private List<PlayerCallback> callbacks;           // List of callbacks.
-    private Handler              statusHandler;       // Handler for periodically fetching JSON.
-    private RequestQueue         requestQueue;        // Request queue for network requests.
-    private int                  updateFrequency;     // Handler's update frequency.
-    private String               streamTitle;         // Title of the current stream.
-    private RemoteViews          remoteViews;         // Views in the notification.
-    private Notification.Builder notificationBuilder; // Builder for the notification.
-    private NotificationManager  notificationManager; // Manager for displaying notification.
-    private Request              statusRequest;       // Request for fetching current stream status.
+    /** Timeout of the status request (ms), retries are left to the PollScheduler. */
+    private static final int STATUS_TIMEOUT = 10000;
+
+    /** Preferences, and key in them, for when a show was last seen live. */
+    private static final String PREFS = "player";
+    private static final String PREF_LAST_LIVE = "last_live";
+
+    // Keys in the preferences for the episodes that have been played and the prefetch budget.
+    private static final String PREF_PLAYED = "played";
+    private static final String PREF_PREFETCH_DAY = "prefetch_day";
+    private static final String PREF_PREFETCH_USED = "prefetch_used";
+
+    /** Directory in the app's storage that episodes are downloaded to. */
+    private static final String DOWNLOAD_DIR = "episodes";
+
+    /** Directory in the app's cache where the live stream is recorded while it's played. */
+    private static final String LIVE_DIR = "live";
+
+    /** File in the app's storage where the positions in episodes are kept. */
+    private static final String POSITION_FILE = "positions";
+
+    /** File in the app's storage where the queue is kept. */
+    private static final String QUEUE_FILE = "queue";
+
+    /** How long to wait for more taps before preparing a selected episode (ms). */
+    private static final int PREPARE_DELAY = 300;
+
+    /** How often the position in the playing episode is saved (ms). */
+    private static final int POSITION_INTERVAL = 5000;
+
+    /** Maximum size of the downloaded episodes (bytes). */
+    private static final long MAX_CACHE_SIZE = 1024L * 1024 * 1024;
+
+    /** Maximum number of episodes downloaded at the same time. */
+    private static final int MAX_DOWNLOADS = 2;
+
+    /** Maximum number of bytes prefetched per day. */
+    private static final long PREFETCH_BUDGET = 20L * 1024 * 1024;
+
+    /** Time to wait before prefetching (ms), so that it doesn't compete with starting to play. */
+    private static final int PREFETCH_DELAY = 10000;
+
+    private MediaPlayer            mediaPlayer;         // Plays the media, on the playback thread.
+    private MediaPlayer            nextPlayer;          // Prepares the next episode, or null.
+    private String                 nextUrl;             // URL of the next episode, or null.
+    private boolean                isNextPrepared;      // Whether nextPlayer is prepared.
+    private MediaPlayerPool        playerPool;          // Players not in use.
+    private HandlerThread          playbackThread;      // Thread that all MediaPlayer calls are on.
+    private Handler                playbackHandler;     // Handler for posting to playback thread.
+    private PlaybackStateMachine   stateMachine;        // State of the player, on playback thread.
+    private State                  state;               // State of the player, on main thread.
+    private boolean                isRunning;           // Whether this service is running or not.
+    private boolean                isForeground;        // Whether the notification is shown.
+    private LocalBinder            binder;              // For communication with clients.
+    private Handler                statusHandler;       // Handler for periodically fetching JSON.
+    private Handler                mainHandler;         // Handler for posting to the main thread.
+    private MediaCache             mediaCache;          // Episodes stored for offline use.
+    private EpisodeDownloader      downloader;          // Downloads episodes to the cache.
+    private PowerLockManager       powerLocks;          // Wake and Wi-Fi locks, while needed.
+    private StreamProxy            streamProxy;         // Caches episodes while streaming, or null.
+    private volatile String        mediaUrl;            // URL of the prepared media, or null.
+    private String                 selectedUrl;         // URL of the episode to prepare next.
+    private volatile int           selection;           // Counts selected episodes.
+    private volatile boolean       isEpisode;           // Whether the media is an episode.
+    private volatile long          liveBehind;          // How far behind live was started (ms).
+    private volatile long          livePausedAt;        // When live was paused (elapsed), or 0.
+    private boolean                playWhenPrepared;    // Whether to play as soon as prepared.
+    private PlaybackQueue          queue;               // Episodes to play next.
+    private List<Episode>          queued;              // The queue, on main thread, or null.
+    private PositionJournal        positionJournal;     // Where the listener was in episodes.
+    private List<Episode>          episodes;            // The episodes, newest first, or null.
+    private Set<String>            played;              // URLs of the episodes played.
+    private PrefetchPolicy         prefetchPolicy;      // Decides what to prefetch.
+    private RequestQueue           requestQueue;        // Request queue for network requests.
+    private PollScheduler          pollScheduler;       // Decides when to fetch JSON next.
+    private boolean                isRequesting;        // Whether a status request is in flight.
+    private long                   savedLastLive;       // Last live time saved to preferences.
+    private String                 streamTitle;         // Title of the current stream.
+    private LiveStatus             liveStatus;          // Last status of the live stream, or null.
+    private NotificationRenderer   notification;        // Shows the notification.
+
+    // Callbacks, which may be changed while they're being called, and what's to be passed to them.
+    private CallbackRegistry<PlayerCallback>   callbacks;         // Player callbacks.
+    private CallbackRegistry<DownloadCallback> downloadCallbacks; // Download callbacks.
+    private CallbackRegistry<QueueCallback>    queueCallbacks;    // Queue callbacks.
+    private EventBatch                         events;            // Player events to dispatch.
 
     @Override
     public void onCreate() {
-        mediaPlayer         = new MediaPlayer();
+        playbackThread      = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
         binder              = new LocalBinder();
-        callbacks           = new ArrayList<PlayerCallback>();
+        callbacks           = new CallbackRegistry<PlayerCallback>();
+        downloadCallbacks   = new CallbackRegistry<DownloadCallback>();
+        queueCallbacks      = new CallbackRegistry<QueueCallback>();
+        events              = new EventBatch();
         statusHandler       = new Handler();
+        mainHandler         = new Handler();
+        mediaCache          = new MediaCache(new File(getFilesDir(), DOWNLOAD_DIR),
+                                             MAX_CACHE_SIZE);
+        powerLocks          = new PowerLockManager(this);
+        downloader          = new EpisodeDownloader(mediaCache, MAX_DOWNLOADS, downloadListener);
+        streamProxy         = new StreamProxy(mediaCache, new File(getCacheDir(), LIVE_DIR));
         requestQueue        = Volley.newRequestQueue(this);
-        updateFrequency     = 0; // Do first request immediately.
-        notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        statusRequest       = new JsonObjectRequest(getString(R.string.kodsnack_status_url), null,
-                                                    this, this);
+        pollScheduler       = new PollScheduler();
+        prefetchPolicy      = new PrefetchPolicy(PREFETCH_BUDGET);
+        positionJournal     = new PositionJournal(new File(getFilesDir(), POSITION_FILE));
+        queue               = new PlaybackQueue(new File(getFilesDir(), QUEUE_FILE), queueListener);
+        stateMachine        = new PlaybackStateMachine(stateListener);
+        state               = State.IDLE;
+        playerPool          = new MediaPlayerPool(playerFactory);
+
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                mediaPlayer = playerPool.obtain();
+            }
+        });
+
+        final SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
+        savedLastLive = prefs.getLong(PREF_LAST_LIVE, 0);
+        pollScheduler.setLastLiveAt(savedLastLive);
+        // The returned set must not be modified, so copy it.
+        played = new HashSet<String>(prefs.getStringSet(PREF_PLAYED, new HashSet<String>()));
+        prefetchPolicy.restore(prefs.getLong(PREF_PREFETCH_DAY, 0),
+                               prefs.getLong(PREF_PREFETCH_USED, 0));
+
+        try {
+            streamProxy.start();
+        } catch (IOException e) {
+            // Episodes can still be streamed, just not cached.
+            Log.e(TAG, "Failed to start the stream proxy: " + e);
+            streamProxy = null;
+        }
     }
 
     @Override
@@ -79,8 +215,9 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
             String action = i.getAction();
             if (action.equals(ACTION_STOP)) {
                 stop();
-                notificationManager.cancel(NOTIFICATION_ID);
+                notification.cancel();
                 stopForeground(true);
+                isForeground = false;
                 stopSelf();
             } else if (action.equals(ACTION_TOGGLE_PLAYING)) {
                 togglePlaying();
@@ -109,22 +246,9 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
         // Intent for playing/pausing the stream when clicking that button in the notification.
         PendingIntent pendingToggle = PendingIntent.getService(this, 0, playPause,
                                                                PendingIntent.FLAG_UPDATE_CURRENT);
-        // Create custom notification and set the intents for it.
-        remoteViews = new RemoteViews(getPackageName(), R.layout.notification_layout);
-        remoteViews.setOnClickPendingIntent(R.id.kill_button, pendingStop);
-        remoteViews.setOnClickPendingIntent(R.id.play_pause_button, pendingToggle);
-        notificationBuilder = new Notification.Builder(this)
-                .setContent(remoteViews)
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.kodsnack)
-                .setContentIntent(openActivity);
-
-        // Initialize the media player (except for preparing the stream).
-        mediaPlayer.setOnPreparedListener(this);
-        mediaPlayer.setOnErrorListener(this);
-        mediaPlayer.setOnInfoListener(this);
-        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        mediaPlayer.setWakeMode(this, PowerManager.PARTIAL_WAKE_LOCK);
+        // Create custom notification with the intents.
+        notification = new NotificationRenderer(this, NOTIFICATION_ID, openActivity, pendingStop,
+                                                pendingToggle);
 
         return START_STICKY;
     }
@@ -137,164 +261,915 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
     @Override
     public boolean onUnbind(Intent i) {
         callbacks.clear();
-        updateFrequency = 15000;
+        downloadCallbacks.clear();
+        queueCallbacks.clear();
+        pollScheduler.setForeground(false);
         return false;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
-            for (PlayerCallback callback : callbacks) {
-                callback.onStopped();
+        statusHandler.removeCallbacks(pollStatus);
+        mainHandler.removeCallbacks(prefetch);
+        mainHandler.removeCallbacks(prepareSelected);
+        downloader.shutdown();
+        queue.close();
+
+        // Drop the queued commands, and release everything the playback thread uses on it.
+        playbackHandler.removeCallbacksAndMessages(null);
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                reset();
+                discardNext();
+                mediaPlayer.release();
+                playerPool.clear();
+                positionJournal.close();
+                if (streamProxy != null) {
+                    streamProxy.stop();
+                }
+                mediaCache.close();
+                powerLocks.releaseAll();
+                Log.d(TAG, powerLocks.toString());
+                playbackThread.quit();
             }
+        });
+        for (PlayerCallback callback : callbacks.snapshot()) {
+            callback.onStopped();
         }
         isRunning = false;
+        isForeground = false;
     }
 
     /**
      * Updates the persistent notification with the correct stream title
-     * and button drawables.
+     * and button drawables. The renderer only posts it if any of that has
+     * changed, so this can be called for every change of state.
      */
     private void updateNotification() {
-        int res = R.drawable.play;
-        if (mediaPlayer.isPlaying()) {
-            res = R.drawable.pause;
+        if (notification == null) {
+            return;
+        }
+        notification.setPlaying(state == State.PLAYING);
+        notification.setTitle(streamTitle);
+        if (!isPrepared(state)) {
+            notification.setProgress(0, -1);
+        }
+        // Not after the notification has been removed, for a change of state that came late.
+        if (isForeground) {
+            notification.update();
         }
-        remoteViews.setImageViewResource(R.id.play_pause_button, res);
-        remoteViews.setTextViewText(R.id.subtitle, streamTitle);
-        notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
     }
 
     /**
-     * Fetches the JSON status periodically.
+     * Polls the JSON status. Only one request is ever in flight; the next
+     * poll is scheduled when the previous one has finished.
      */
-    private void fetchStatus() {
-        statusHandler.postDelayed(new Runnable() {
-            public void run() {
-                // We only want to fetch again if we're running and either have some callbacks (i.e.
-                // an fragment/activity is active) or we're currently playing.
-                if (isRunning && (!callbacks.isEmpty() || mediaPlayer.isPlaying())) {
-                    requestQueue.add(statusRequest);
-                    statusHandler.postDelayed(this, updateFrequency);
-                }
+    private final Runnable pollStatus = new Runnable() {
+        public void run() {
+            // We only want to fetch again if we're running and either have some callbacks (i.e.
+            // an fragment/activity is active) while the screen is on, or we're currently playing.
+            final boolean watched = !callbacks.isEmpty() && powerLocks.isInteractive();
+            if (isRunning && !isRequesting && (watched || state == State.PLAYING)) {
+                isRequesting = true;
+                // Volley requests can't be reused, so create a new one for every poll.
+                final LiveStatusRequest request = new LiveStatusRequest(
+                        getString(R.string.kodsnack_status_url),
+                        PlayerService.this, PlayerService.this);
+                request.setRetryPolicy(new DefaultRetryPolicy(STATUS_TIMEOUT, 0, 1));
+                requestQueue.add(request);
+            } else if (isRunning && !isRequesting && !callbacks.isEmpty()) {
+                // Only the screen is off; no request, but look again when it may be on.
+                scheduleStatus();
             }
-        }, updateFrequency);
+        }
+    };
+
+    /**
+     * Fetches the JSON status right away, unless a request is already in
+     * flight (its response will schedule the next poll).
+     */
+    private void fetchStatus() {
+        if (!isRequesting) {
+            statusHandler.removeCallbacks(pollStatus);
+            statusHandler.post(pollStatus);
+        }
+    }
+
+    /**
+     * Schedules the next status poll according to the PollScheduler.
+     */
+    private void scheduleStatus() {
+        statusHandler.removeCallbacks(pollStatus);
+        statusHandler.postDelayed(pollStatus,
+                                  pollScheduler.nextDelay(System.currentTimeMillis()));
     }
 
     /**
      * Prepares the media player with the provided URL to a stream.
      *
+     * Tapping through several episodes in a row only prepares the last one:
+     * the episode is prepared once no other has been selected for a moment.
+     *
      * @param url The URL to the stream.
      */
     public void prepareMedia(String url) {
-        stop();
-        prepare(url);
+        if (!isRunning) {
+            return;
+        }
+        selectedUrl = url;
+        selection++;
+        mainHandler.removeCallbacks(prepareSelected);
+        mainHandler.postDelayed(prepareSelected, PREPARE_DELAY);
+
+        // Show that something is happening right away.
+        for (PlayerCallback callback : callbacks.snapshot()) {
+            callback.onBuffering();
+        }
     }
 
-    private void prepare(String url) {
-        if (isRunning && !isPreparing && !isPrepared) {
-            for (PlayerCallback callback : callbacks) {
-                callback.onBuffering();
+    /**
+     * Prepares the last selected episode, stopping whatever was playing or
+     * being prepared.
+     */
+    private final Runnable prepareSelected = new Runnable() {
+        public void run() {
+            prepareEpisode(selectedUrl, false);
+        }
+    };
+
+    /**
+     * Stops whatever is playing and prepares an episode.
+     *
+     * @param url      The URL of the episode's media file.
+     * @param autoplay Whether to start playing it when it's prepared.
+     */
+    private void prepareEpisode(final String url, final boolean autoplay) {
+        mainHandler.removeCallbacks(prepareSelected);
+        final int current = ++selection;
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                // Another episode has been selected while waiting for the playback thread.
+                if (current != selection) {
+                    return;
+                }
+                reset();
+                playWhenPrepared = autoplay;
+                prepare(url, true);
             }
-            isPreparing = true;
-            try {
-                Log.d(TAG, "Preparing with: " + url);
-                mediaPlayer.setDataSource(url);
-                mediaPlayer.prepareAsync();
-            } catch (IOException e) {
-                // TODO: Error handling.
-                Log.e(TAG, e.getMessage());
+        });
+        onEpisodeChanged(url);
+    }
+
+    /**
+     * Records that an episode has been started, and takes it off the queue
+     * if it's the next one there. Called on the main thread.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    private void onEpisodeChanged(String url) {
+        final Episode episode = findEpisode(url);
+        if (episode != null) {
+            streamTitle = episode.name;
+            updateNotification();
+        }
+
+        final Episode next = queue.peek();
+        if (next != null && next.url.equals(url)) {
+            queue.poll();
+        }
+        updateNext();
+
+        if (played.add(url)) {
+            getSharedPreferences(PREFS, MODE_PRIVATE).edit()
+                    .putStringSet(PREF_PLAYED, played)
+                    .apply();
+        }
+        // What's likely to be played next has changed.
+        schedulePrefetch();
+    }
+
+    /**
+     * Returns an episode in the list or in the queue.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The episode, or null if it's in neither.
+     */
+    private Episode findEpisode(String url) {
+        if (episodes != null) {
+            for (Episode episode : episodes) {
+                if (episode.url.equals(url)) {
+                    return episode;
+                }
             }
         }
+        for (Episode episode : queue.getEpisodes()) {
+            if (episode.url.equals(url)) {
+                return episode;
+            }
+        }
+        return null;
     }
 
     /**
-     * Toggle the playing state of the media player between play and pause.
+     * Returns the queued episodes, the next one first. This doesn't wait
+     * for the queue to be read; until it has been, the queue is empty.
+     */
+    public List<Episode> getQueue() {
+        return queued != null ? queued : Collections.<Episode>emptyList();
+    }
+
+    /**
+     * Returns whether an episode is queued, like {@link #getQueue()}.
      *
-     * NOTE: This can *not* be called before the stream is prepared. Thus, a
-     * client should wait for the onPrepared() callback before attempting to
-     * call this.
+     * @param url The URL of the episode's media file.
      */
-    public void togglePlaying() {
-        if (mediaPlayer.isPlaying()) {
-            pause();
+    public boolean isQueued(String url) {
+        for (Episode episode : getQueue()) {
+            if (episode.url.equals(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an episode to the end of the queue. If nothing is playing, it's
+     * played right away.
+     *
+     * @param episode The episode.
+     */
+    public void enqueue(Episode episode) {
+        if (!isRunning || !queue.add(episode)) {
+            return;
+        }
+        if (state == State.IDLE || state == State.ERROR) {
+            playQueued();
         } else {
-            play();
+            updateNext();
         }
     }
 
     /**
-     * Starts the stream.
+     * Removes an episode from the queue.
      *
-     * NOTE: This can *not* be called before the stream is prepared!
+     * @param url The URL of the episode's media file.
      */
-    private void play() {
-        if (isPrepared) {
-            mediaPlayer.start();
-            isPreparing = false;
+    public void dequeue(String url) {
+        if (queue.remove(url)) {
+            updateNext();
+        }
+    }
 
-            for (PlayerCallback callback : callbacks) {
-                callback.onPlaying();
+    /**
+     * Moves an episode to another place in the queue.
+     *
+     * @param from The index of the episode in {@link #getQueue()}.
+     * @param to   The index it should have afterwards.
+     */
+    public void moveInQueue(int from, int to) {
+        if (queue.move(from, to)) {
+            updateNext();
+        }
+    }
+
+    /**
+     * Replaces the queue with all episodes that haven't been played, the
+     * newest first, and starts playing them.
+     */
+    public void playAllUnplayed() {
+        if (!isRunning || episodes == null) {
+            return;
+        }
+
+        final List<Episode> unplayed = new ArrayList<Episode>();
+        for (Episode episode : episodes) {
+            if (!played.contains(episode.url)) {
+                unplayed.add(episode);
             }
-            startForeground(NOTIFICATION_ID, notificationBuilder.build());
-            updateNotification();
         }
+        queue.set(unplayed);
+        playQueued();
     }
 
     /**
-     * Pauses the stream.
+     * Takes the next episode off the queue and plays it.
+     */
+    private void playQueued() {
+        final Episode next = queue.poll();
+        if (next != null) {
+            prepareEpisode(next.url, true);
+        }
+    }
+
+    /**
+     * Has the next episode in the queue prepared while something is
+     * playing, so that it starts without a gap.
+     */
+    private void updateNext() {
+        final Episode next = queue.peek();
+        setNextMedia(next != null && state != State.IDLE && state != State.ERROR
+                ? next.url : null);
+    }
+
+    /**
+     * Sets the list of episodes, which is what the next episode to play is
+     * guessed from.
      *
-     * NOTE: This can *not* be called before the stream is prepared!
+     * @param episodes The episodes, newest first.
      */
-    private void pause() {
-        if (mediaPlayer.isPlaying()) {
-            mediaPlayer.pause();
+    public void setEpisodes(List<Episode> episodes) {
+        this.episodes = episodes;
+        schedulePrefetch();
+    }
 
-            for (PlayerCallback callback : callbacks) {
-                callback.onPaused();
+    /**
+     * Prefetches the beginning of the episodes that are likely to be played
+     * next, so that they start right away.
+     */
+    private final Runnable prefetch = new Runnable() {
+        public void run() {
+            if (episodes == null || streamProxy == null || !isOnUnmeteredNetwork()) {
+                return;
             }
-            updateNotification();
+
+            final List<String> urls = prefetchPolicy.choose(episodes, mediaUrl, played,
+                                                            mediaCache,
+                                                            System.currentTimeMillis());
+            if (urls.isEmpty()) {
+                return;
+            }
+            for (String url : urls) {
+                Log.d(TAG, "Prefetching: " + url);
+                streamProxy.prefetch(url, PrefetchPolicy.PREFIX_BYTES);
+            }
+            getSharedPreferences(PREFS, MODE_PRIVATE).edit()
+                    .putLong(PREF_PREFETCH_DAY, prefetchPolicy.getDay())
+                    .putLong(PREF_PREFETCH_USED, prefetchPolicy.getUsed())
+                    .apply();
         }
+    };
+
+    /**
+     * Schedules prefetching, after a while so that it doesn't compete with
+     * what the user is doing right now.
+     */
+    private void schedulePrefetch() {
+        mainHandler.removeCallbacks(prefetch);
+        mainHandler.postDelayed(prefetch, PREFETCH_DELAY);
     }
 
     /**
-     * Stops the stream.
+     * Returns whether the device is on Wi-Fi that isn't metered, where
+     * prefetching doesn't cost the user anything.
+     */
+    private boolean isOnUnmeteredNetwork() {
+        final ConnectivityManager cm =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected()
+                && info.getType() == ConnectivityManager.TYPE_WIFI
+                && !cm.isActiveNetworkMetered();
+    }
+
+    /**
+     * Sets the episode to play when the current one has been played to the
+     * end. It's prepared right away, so that it starts without a gap.
      *
-     * NOTE: This can only be called when the stream is playing.
+     * @param url The URL of the episode's media file, or null for none.
+     */
+    public void setNextMedia(final String url) {
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                prepareNext(url);
+            }
+        });
+    }
+
+    /**
+     * Toggle the playing state of the media player between play and pause.
+     * Does nothing unless media has been prepared.
+     */
+    public void togglePlaying() {
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                if (stateMachine.getState() == State.PLAYING) {
+                    pause();
+                } else {
+                    play();
+                }
+            }
+        });
+    }
+
+    /**
+     * Time-shifts the live stream: plays it from some time behind the
+     * broadcast, as far back as it has been recorded since it was started.
+     * Does nothing unless the live stream is prepared.
+     *
+     * Catching up by playing faster needs API level 23, so catching up
+     * jumps instead.
+     *
+     * @param behind How far behind the broadcast to play (ms), 0 to catch up.
+     */
+    public void seekLive(final long behind) {
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                if (isEpisode || mediaUrl == null || streamProxy == null) {
+                    return;
+                }
+                // The player can't seek in an endless stream, so it reconnects to the relay,
+                // which keeps recording for a moment without any player.
+                final String url = mediaUrl;
+                reset();
+                liveBehind = behind;
+                playWhenPrepared = true;
+                prepare(url, false);
+            }
+        });
+    }
+
+    /**
+     * Returns about how far behind the broadcast the live stream is: how far
+     * behind it was started, plus how long it has been paused since. Called
+     * on the main thread.
+     *
+     * @return The time (ms), or -1 if the live stream isn't prepared.
+     */
+    public long getLiveBehind() {
+        if (isEpisode || !isPrepared(state)) {
+            return -1;
+        }
+        final long pausedAt = livePausedAt;
+        return liveBehind + (pausedAt > 0 ? SystemClock.elapsedRealtime() - pausedAt : 0);
+    }
+
+    /**
+     * Stops the stream.
      */
     public void stop() {
-        if (mediaPlayer.isPlaying()) {
-            mediaPlayer.stop();
-            // TODO: Should we reset here?
+        playbackHandler.post(new Runnable() {
+            public void run() {
+                reset();
+            }
+        });
+    }
+
+    /**
+     * Prepares the media player with a URL, unless something is already
+     * prepared. Called on the playback thread.
+     *
+     * @param url     The URL to the stream.
+     * @param episode Whether it's an episode, which can be cached, or the live stream.
+     */
+    private void prepare(String url, boolean episode) {
+        // Try again after an error.
+        if (stateMachine.getState() == State.ERROR) {
+            reset();
+        }
+        if (!stateMachine.fire(Event.PREPARE)) {
+            return;
+        }
+
+        mediaUrl = url;
+        isEpisode = episode;
+        // Keep the device awake until it plays, if it's to play when prepared.
+        powerLocks.setPlaying(playWhenPrepared, isStreaming());
+        if (episode && url.equals(nextUrl)) {
+            // It's already being prepared as the next episode, take over that player.
+            final boolean prepared = isNextPrepared;
+            playerPool.recycle(mediaPlayer);
+            mediaPlayer = nextPlayer;
+            nextPlayer = null;
+            nextUrl = null;
+            isNextPrepared = false;
+            if (prepared) {
+                onCurrentPrepared();
+            }
+            return;
+        }
+
+        try {
+            setDataSource(mediaPlayer, url, episode);
+            mediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to prepare " + url + ": " + e);
+            stateMachine.fire(Event.FAIL);
+        }
+    }
+
+    /**
+     * Prepares the episode to play after the current one on a second
+     * player, replacing the one prepared before. Called on the playback
+     * thread.
+     *
+     * @param url The URL of the episode's media file, or null for none.
+     */
+    private void prepareNext(String url) {
+        if (url == null ? nextUrl == null : url.equals(nextUrl)) {
+            return;
+        }
+        discardNext();
+        if (url == null) {
+            return;
+        }
+
+        nextPlayer = playerPool.obtain();
+        nextUrl = url;
+        try {
+            setDataSource(nextPlayer, url, true);
+            nextPlayer.prepareAsync();
+        } catch (IOException e) {
+            // The episode is prepared the usual way when it's its turn.
+            Log.e(TAG, "Failed to prepare " + url + ": " + e);
+            discardNext();
+        }
+    }
+
+    /**
+     * Hands the prepared next player to the playing one, which starts it
+     * when it completes. Called on the playback thread.
+     */
+    private void linkNext() {
+        final State current = stateMachine.getState();
+        if (isNextPrepared && (current == State.PREPARED || current == State.PLAYING
+                               || current == State.PAUSED)) {
+            mediaPlayer.setNextMediaPlayer(nextPlayer);
+        }
+    }
+
+    /**
+     * Stops preparing the next episode and recycles its player. Called on
+     * the playback thread.
+     */
+    private void discardNext() {
+        if (nextPlayer == null) {
+            return;
+        }
+
+        final State current = stateMachine.getState();
+        if (isNextPrepared && (current == State.PREPARED || current == State.PLAYING
+                               || current == State.PAUSED)) {
+            mediaPlayer.setNextMediaPlayer(null);
+        }
+        playerPool.recycle(nextPlayer);
+        if (streamProxy != null) {
+            streamProxy.closeConnections(nextUrl);
+        }
+        nextPlayer = null;
+        nextUrl = null;
+        isNextPrepared = false;
+    }
+
+    /**
+     * Creates the MediaPlayers for the pool, on the playback thread, which
+     * makes them call their listeners on it.
+     */
+    private final MediaPlayerPool.Factory playerFactory = new MediaPlayerPool.Factory() {
+        public MediaPlayer create() {
+            final MediaPlayer player = new MediaPlayer();
+            player.setOnPreparedListener(PlayerService.this);
+            player.setOnErrorListener(PlayerService.this);
+            player.setOnInfoListener(PlayerService.this);
+            player.setOnCompletionListener(PlayerService.this);
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            return player;
+        }
+    };
+
+    /**
+     * Sets a media player's data source to the downloaded file of an
+     * episode, if it has been downloaded, or else streams it through the
+     * caching proxy. The live stream goes through the proxy's relay, which
+     * reconnects when the connection drops, or straight from its URL if
+     * there's no proxy.
+     *
+     * @param player  The media player.
+     * @param url     The URL to the stream.
+     * @param episode Whether it's an episode or the live stream.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void setDataSource(MediaPlayer player, String url, boolean episode)
+            throws IOException {
+        final File file = episode ? mediaCache.getFile(url) : null;
+        if (file == null) {
+            // The live stream never ends, there's nothing to cache.
+            final String source = streamProxy == null ? url
+                    : episode ? streamProxy.getUrl(url) : streamProxy.getLiveUrl(url, liveBehind);
+            Log.d(TAG, "Preparing with: " + source);
+            player.setDataSource(source);
+            return;
+        }
+
+        Log.d(TAG, "Preparing with: " + file);
+        // The media server can't open files in the app's private storage, so hand it the FD.
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            player.setDataSource(in.getFD());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Starts the stream, if it's prepared or paused. Called on the
+     * playback thread.
+     */
+    private void play() {
+        if (stateMachine.fire(Event.PLAY)) {
+            mediaPlayer.start();
+            // Keeps episodes that are being listened to in the cache.
+            mediaCache.markPlayed(mediaUrl);
+            if (livePausedAt > 0) {
+                // The relay went on recording, so the stream is now that much further behind.
+                liveBehind += SystemClock.elapsedRealtime() - livePausedAt;
+                livePausedAt = 0;
+            }
+            playbackHandler.removeCallbacks(trackPosition);
+            playbackHandler.postDelayed(trackPosition, POSITION_INTERVAL);
+            postProgress();
+        }
+    }
+
+    /**
+     * Pauses the stream, if it's playing. The relay goes on recording the
+     * live stream, so it's resumed where it was paused. Called on the
+     * playback thread.
+     */
+    private void pause() {
+        if (stateMachine.fire(Event.PAUSE)) {
+            mediaPlayer.pause();
+            if (!isEpisode) {
+                livePausedAt = SystemClock.elapsedRealtime();
+            }
+            playbackHandler.removeCallbacks(trackPosition);
+            savePosition();
+            postProgress();
+        }
+    }
+
+    /**
+     * Stops whatever the media player is doing and resets it, which is
+     * allowed in every state. Called on the playback thread.
+     */
+    private void reset() {
+        final State current = stateMachine.getState();
+        if (current == State.PLAYING || current == State.PAUSED) {
+            savePosition();
+        }
+        playbackHandler.removeCallbacks(trackPosition);
+        playWhenPrepared = false;
+        liveBehind = 0;
+        livePausedAt = 0;
+        if (stateMachine.fire(Event.STOP)) {
+            // Also cancels preparing, and closes the player's connections to the proxy.
             mediaPlayer.reset();
-            isPrepared = false;
+            if (streamProxy != null && mediaUrl != null) {
+                // The proxy may be blocked on the server, and only notice when it writes.
+                streamProxy.closeConnections(mediaUrl);
+            }
+        }
+    }
 
-            for (PlayerCallback callback : callbacks) {
-                callback.onStopped();
+    /**
+     * Saves the position in the playing episode every now and then, so that
+     * it's not lost if the app is killed, and shows it in the notification.
+     */
+    private final Runnable trackPosition = new Runnable() {
+        public void run() {
+            if (stateMachine.getState() == State.PLAYING) {
+                savePosition();
+                postProgress();
+                playbackHandler.postDelayed(this, POSITION_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Releases the locks held after an episode completed, unless the next
+     * one is being prepared. Posted after the queue has had its chance.
+     */
+    private final Runnable releaseIfIdle = new Runnable() {
+        public void run() {
+            if (stateMachine.getState() == State.IDLE) {
+                powerLocks.setPlaying(false, false);
+            }
+        }
+    };
+
+    /**
+     * Saves the position in the prepared episode. The position is written
+     * to the journal in the background. Called on the playback thread.
+     */
+    private void savePosition() {
+        if (isEpisode) {
+            positionJournal.setPosition(mediaUrl, mediaPlayer.getCurrentPosition());
+            positionJournal.flush();
+        }
+    }
+
+    /**
+     * Passes the progress through the prepared episode on to the
+     * notification. Live streams have no progress. Called on the playback
+     * thread.
+     */
+    private void postProgress() {
+        final long position = isEpisode ? mediaPlayer.getCurrentPosition() : 0;
+        final long duration = isEpisode ? mediaPlayer.getDuration() : -1;
+        mainHandler.post(new Runnable() {
+            public void run() {
+                if (notification != null) {
+                    notification.setProgress(position, duration);
+                    updateNotification();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether the prepared media comes from the network rather than
+     * from a downloaded file. Called on the playback thread.
+     */
+    private boolean isStreaming() {
+        return !isEpisode || !mediaCache.contains(mediaUrl);
+    }
+
+    /**
+     * Passes changes of the player's state from the playback thread to the
+     * main thread.
+     */
+    private final PlaybackStateMachine.Listener stateListener =
+            new PlaybackStateMachine.Listener() {
+        public void onStateChanged(State from, State to, Event event) {
+            if (to != State.PREPARING) {
+                // Set by prepare(), which knows what is prepared. A completed episode holds
+                // the locks until the next one in the queue, if any, is being prepared, and
+                // media about to play holds them on to playing.
+                powerLocks.setPlaying(to == State.PLAYING || event == Event.COMPLETE
+                                      || to == State.PREPARED && playWhenPrepared,
+                                      isStreaming());
+            }
+            synchronized (events) {
+                events.state = to;
+                events.stopped |= to == State.IDLE;
+                events.failed |= to == State.ERROR;
+                events.buffering = 0;
+                postEvents();
+            }
+        }
+    };
+
+    /**
+     * Passes the start or end of buffering from the playback thread to the
+     * main thread.
+     *
+     * @param buffering Whether buffering started or ended.
+     */
+    private void postBuffering(boolean buffering) {
+        synchronized (events) {
+            events.buffering = buffering ? 1 : -1;
+            postEvents();
+        }
+    }
+
+    /**
+     * Dispatches the events on the main thread, unless that's already on
+     * its way. Called with the events locked.
+     */
+    private void postEvents() {
+        if (!events.posted) {
+            events.posted = true;
+            mainHandler.post(dispatchEvents);
+        }
+    }
+
+    /**
+     * Tells the callbacks and the notification about what the player has
+     * done since the last time, on the main thread. Events that came in a
+     * burst, e.g. preparing, prepared and playing, are passed on as the state
+     * they ended in, so the UI is only updated once.
+     */
+    private final Runnable dispatchEvents = new Runnable() {
+        public void run() {
+            final State newState;
+            final boolean stopped;
+            final boolean failed;
+            final int buffering;
+            synchronized (events) {
+                newState = events.state;
+                stopped = events.stopped;
+                failed = events.failed;
+                buffering = events.buffering;
+                events.stopped = false;
+                events.failed = false;
+                events.buffering = 0;
+                events.posted = false;
+            }
+
+            final State old = state;
+            state = newState;
+            // Whether the callbacks have been told that the current media is prepared.
+            final boolean wasPrepared = isPrepared(old) && !stopped && !failed;
+            final boolean changed = newState != old || stopped || failed;
+            for (PlayerCallback callback : callbacks.snapshot()) {
+                // Errors and stops on the way to the new state are passed on too.
+                if (failed && newState != State.ERROR) {
+                    // TODO: Better error handling.
+                    callback.onError(new Exception("Something went wrong."));
+                }
+                if (stopped && newState != State.IDLE) {
+                    callback.onStopped();
+                }
+                if (changed) {
+                    dispatchState(callback, newState, wasPrepared);
+                }
+                if (newState == State.PLAYING && buffering > 0) {
+                    callback.onBuffering();
+                } else if (newState == State.PLAYING && buffering < 0 && !changed) {
+                    callback.onPlaying();
+                }
+            }
+
+            if (newState == State.PLAYING && changed) {
+                updateNotification();
+                startForeground(NOTIFICATION_ID, notification.build());
+                isForeground = true;
+            }
+            if (isPrepared(newState) && !wasPrepared) {
+                // Something is prepared, so it's time to prepare what comes after it.
+                updateNext();
             }
             updateNotification();
         }
+    };
+
+    /**
+     * Tells a callback about a new state of the player.
+     *
+     * @param callback    The callback.
+     * @param newState    The new state.
+     * @param wasPrepared Whether the callback has been told that the media is prepared.
+     */
+    private static void dispatchState(PlayerCallback callback, State newState,
+                                      boolean wasPrepared) {
+        switch (newState) {
+            case PREPARING:
+                callback.onBuffering();
+                break;
+            case PREPARED:
+                callback.onPrepared();
+                break;
+            case PLAYING:
+                if (!wasPrepared) {
+                    callback.onPrepared();
+                }
+                callback.onPlaying();
+                break;
+            case PAUSED:
+                if (!wasPrepared) {
+                    callback.onPrepared();
+                }
+                callback.onPaused();
+                break;
+            case IDLE:
+                callback.onStopped();
+                break;
+            case ERROR:
+                // TODO: Better error handling.
+                callback.onError(new Exception("Something went wrong."));
+                break;
+        }
     }
 
     /**
-     * Register a callback to be called when events happen.
+     * Returns whether media is prepared in a state.
+     */
+    private static boolean isPrepared(State state) {
+        return state == State.PREPARED || state == State.PLAYING || state == State.PAUSED;
+    }
+
+    /**
+     * Register a callback to be called when events happen. The callback is
+     * only weakly referenced, so that e.g. a fragment that is gone can be
+     * collected even if it never unregistered.
      *
      * @param callback The callback to register.
      */
     public void registerPlayerCallback(PlayerCallback callback) {
         // Shorter update period when we have someone interested in updates.
-        updateFrequency = 3000;
-        // If this is the first callback, start fetching JSON again.
+        pollScheduler.setForeground(true);
+        // If this is the first callback, fetch JSON right away (which restarts polling).
         if (callbacks.isEmpty()) {
             fetchStatus();
         }
-        callbacks.add(callback);
-        if (isPrepared) {
+        callbacks.addWeak(callback);
+        if (liveStatus != null) {
+            callback.onLiveStatus(liveStatus);
+        }
+        if (isPrepared(state)) {
             callback.onPrepared();
         }
-        if (mediaPlayer.isPlaying()) {
+        if (state == State.PLAYING) {
             callback.onPlaying();
         } else {
             callback.onPaused();
@@ -309,92 +1184,345 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
     public void unregisterPlayerCallback(PlayerCallback callback) {
         callbacks.remove(callback);
         if (callbacks.isEmpty()) {
-            // TODO: Even more infrequent updates perhaps?
-            updateFrequency = 15000;
+            pollScheduler.setForeground(false);
         }
     }
 
+    /**
+     * Downloads an episode so that it can be played offline.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void download(String url) {
+        downloader.download(url);
+    }
+
+    /**
+     * Cancels the download of an episode.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void cancelDownload(String url) {
+        downloader.cancel(url);
+    }
+
+    /**
+     * Deletes a downloaded episode.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void deleteDownload(String url) {
+        downloader.delete(url);
+    }
+
+    /**
+     * Returns the downloader, for looking up the state of downloads.
+     */
+    public EpisodeDownloader getDownloader() {
+        return downloader;
+    }
+
+    /**
+     * Register a callback to be called when downloads make progress. The
+     * callback is only weakly referenced, like the player callbacks.
+     *
+     * @param callback The callback to register.
+     */
+    public void registerDownloadCallback(DownloadCallback callback) {
+        downloadCallbacks.addWeak(callback);
+    }
+
+    /**
+     * Remove a download callback.
+     *
+     * @param callback The callback to remove.
+     */
+    public void unregisterDownloadCallback(DownloadCallback callback) {
+        downloadCallbacks.remove(callback);
+    }
+
+    /**
+     * Register a callback to be called when the queue changes, and right
+     * away if it has been read. The callback is only weakly referenced,
+     * like the player callbacks.
+     *
+     * @param callback The callback to register.
+     */
+    public void registerQueueCallback(QueueCallback callback) {
+        queueCallbacks.addWeak(callback);
+        if (queued != null) {
+            callback.onQueueChanged(queued);
+        }
+    }
+
+    /**
+     * Remove a queue callback.
+     *
+     * @param callback The callback to remove.
+     */
+    public void unregisterQueueCallback(QueueCallback callback) {
+        queueCallbacks.remove(callback);
+    }
+
+    /**
+     * Passes changes of the queue to the main thread, where they're kept
+     * for {@link #getQueue()} and passed on to the queue callbacks.
+     */
+    private final PlaybackQueue.Listener queueListener = new PlaybackQueue.Listener() {
+        public void onQueueChanged(List<Episode> queue) {
+            final List<Episode> snapshot = Collections.unmodifiableList(queue);
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    queued = snapshot;
+                    for (QueueCallback callback : queueCallbacks.snapshot()) {
+                        callback.onQueueChanged(snapshot);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Passes on the progress of the downloads, from the download threads to
+     * the download callbacks on the main thread.
+     */
+    private final EpisodeDownloader.Listener downloadListener = new EpisodeDownloader.Listener() {
+        public void onProgress(final String url, final long bytes, final long total) {
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    for (DownloadCallback callback : downloadCallbacks.snapshot()) {
+                        callback.onDownloadProgress(url, bytes, total);
+                    }
+                }
+            });
+        }
+
+        public void onFinished(final String url, File file) {
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    for (DownloadCallback callback : downloadCallbacks.snapshot()) {
+                        callback.onDownloadFinished(url);
+                    }
+                }
+            });
+        }
+
+        public void onFailed(final String url, final IOException e) {
+            Log.e(TAG, "Download of " + url + " failed: " + e);
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    for (DownloadCallback callback : downloadCallbacks.snapshot()) {
+                        callback.onDownloadFailed(url, e);
+                    }
+                }
+            });
+        }
+
+        public void onActiveChanged(boolean active) {
+            powerLocks.setDownloading(active);
+        }
+    };
+
     /* Callback received when we get a response from the JSON status request. */
     @Override
-    public void onResponse(JSONObject status) {
+    public void onResponse(LiveStatus status) {
         Log.d(TAG, status.toString());
-        for (PlayerCallback callback : callbacks) {
-            callback.onJsonInfo(status);
-        }
+        isRequesting = false;
+        onStatus(status.isLive, status.listeners);
 
-        try {
-            JSONObject icestats = status.getJSONObject("icestats");
-            if (icestats.has("source")) {
-                JSONObject source = icestats.getJSONObject("source");
+        // Only bother the callbacks (and the UI) when something has changed.
+        if (!status.equals(liveStatus)) {
+            liveStatus = status;
+            for (PlayerCallback callback : callbacks.snapshot()) {
+                callback.onLiveStatus(status);
+            }
+        }
 
-                // Try to find a title or fall back to the server name as title.
-                streamTitle = source.has("title") ? source.getString("title")
-                                                   : source.getString("server_name");
-                // Prepare MediaPlayer with stream URL.
-                prepare(source.getString("listenurl"));
+        if (status.isLive) {
+            // Unless an episode is playing, which has a title of its own.
+            if (mediaUrl == null || mediaUrl.equals(status.listenUrl)) {
+                streamTitle = status.getDisplayTitle();
+                updateNotification();
             }
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            // TODO: We can't stop on error if we're not live streaming.
-//            stop();
-            for (PlayerCallback callback : callbacks) {
-                callback.onError(e);
+            // Prepare MediaPlayer with stream URL, unless something is already prepared.
+            if (isRunning) {
+                final String url = status.listenUrl;
+                playbackHandler.post(new Runnable() {
+                    public void run() {
+                        prepare(url, false);
+                    }
+                });
             }
         }
+        scheduleStatus();
+    }
+
+    /**
+     * Records the outcome of a successful status poll.
+     *
+     * @param live      Whether a show is live.
+     * @param listeners The number of listeners, or -1 if unknown.
+     */
+    private void onStatus(boolean live, int listeners) {
+        final long now = System.currentTimeMillis();
+        pollScheduler.onSuccess(live, listeners, now);
+
+        // Remember when the last show was on, to know when the next one is likely. No need to
+        // save this on every poll.
+        final long lastLive = pollScheduler.getLastLiveAt();
+        if (lastLive - savedLastLive > 10 * 60 * 1000) {
+            savedLastLive = lastLive;
+            getSharedPreferences(PREFS, MODE_PRIVATE).edit()
+                    .putLong(PREF_LAST_LIVE, lastLive)
+                    .apply();
+        }
     }
 
     /* Callback received when the request for the JSON status failed. */
     @Override
     public void onErrorResponse(VolleyError volleyError) {
         Log.e(TAG, volleyError.toString());
+        isRequesting = false;
+        pollScheduler.onError();
+        scheduleStatus();
         // <DEBUG> (with German thunk music...)
 //        streamTitle = "Debug Title";
-//        prepare("http://87.230.101.78:80/top100station.mp3");
+//        prepare("http://87.230.101.78:80/top100station.mp3", false);
         // </DEBUG>
-        for (PlayerCallback callback : callbacks) {
+        for (PlayerCallback callback : callbacks.snapshot()) {
             callback.onError(volleyError.getCause());
         }
     }
 
-    /* Callback received when the MediaPlayer is done preparing (i.e. buffering) media. */
+    /*
+     * Callback received when the MediaPlayer is done preparing (i.e. buffering) media. The
+     * MediaPlayer callbacks are called on the playback thread.
+     */
     @Override
-    public void onPrepared(MediaPlayer mediaPlayer) {
-        isPreparing = false;
-        isPrepared = true;
-        for (PlayerCallback callback : callbacks) {
-            callback.onPrepared();
+    public void onPrepared(MediaPlayer player) {
+        if (player == nextPlayer) {
+            isNextPrepared = true;
+            seekToSaved(player, nextUrl);
+            linkNext();
+            return;
+        } else if (player != mediaPlayer) {
+            return;
+        }
+
+        if (isEpisode) {
+            seekToSaved(player, mediaUrl);
         }
+        onCurrentPrepared();
     }
 
-    /* Callback from the MediaPlayer when it has an error inform us about. */
+    /**
+     * Called on the playback thread when the current media is prepared.
+     */
+    private void onCurrentPrepared() {
+        stateMachine.fire(Event.PREPARED);
+        linkNext();
+        if (playWhenPrepared) {
+            playWhenPrepared = false;
+            play();
+        }
+    }
+
+    /**
+     * Seeks to where the listener was in an episode. Called on the playback
+     * thread.
+     */
+    private void seekToSaved(MediaPlayer player, String url) {
+        final int position = positionJournal.getPosition(url);
+        if (position > 0) {
+            player.seekTo(position);
+        }
+    }
+
+    /* Callback from the MediaPlayer when the media has been played to the end. */
     @Override
-    public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
-        isPreparing = false;
-        isPrepared = false;
+    public void onCompletion(MediaPlayer player) {
+        if (player != mediaPlayer || stateMachine.getState() != State.PLAYING) {
+            return;
+        }
+
+        // Finished episodes are the first to go when the cache is full.
+        mediaCache.markCompleted(mediaUrl);
+        if (isEpisode) {
+            // Start from the beginning if it's played again.
+            positionJournal.clearPosition(mediaUrl);
+            positionJournal.flush();
+        }
+
+        if (isNextPrepared) {
+            // The next player has started by itself, it only has to take over.
+            playerPool.recycle(mediaPlayer);
+            mediaPlayer = nextPlayer;
+            mediaUrl = nextUrl;
+            isEpisode = true;
+            nextPlayer = null;
+            nextUrl = null;
+            isNextPrepared = false;
+            mediaCache.markPlayed(mediaUrl);
+            powerLocks.setPlaying(true, isStreaming());
+            postProgress();
+
+            final String url = mediaUrl;
+            mainHandler.post(new Runnable() {
+                public void run() {
+                    onEpisodeChanged(url);
+                }
+            });
+            return;
+        }
+
+        stateMachine.fire(Event.COMPLETE);
+        playbackHandler.removeCallbacks(trackPosition);
         mediaPlayer.reset();
-        mediaPlayer.release();
+        mediaUrl = null;
 
-        for (PlayerCallback callback : callbacks) {
-            // TODO: Better error handling.
-            callback.onError(new Exception("Something went wrong."));
+        // The next episode wasn't prepared in time, prepare it now.
+        mainHandler.post(new Runnable() {
+            public void run() {
+                playQueued();
+                playbackHandler.post(releaseIfIdle);
+            }
+        });
+    }
+
+    /* Callback from the MediaPlayer when it has an error inform us about. */
+    @Override
+    public boolean onError(MediaPlayer player, int what, int extra) {
+        Log.e(TAG, "MediaPlayer error " + what + ", " + extra);
+        if (player == nextPlayer) {
+            // The episode is prepared the usual way when it's its turn.
+            discardNext();
+            return true;
+        } else if (player != mediaPlayer) {
+            return true;
         }
 
+        playbackHandler.removeCallbacks(trackPosition);
+        // The MediaPlayer is reset when the next media is prepared.
+        stateMachine.fire(Event.FAIL);
+
         // Signal that the error was handled.
         return true;
     }
 
     /* Callback from the MediaPlayer when it has some info to inform us about. */
     @Override
-    public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
-        if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
-            for (PlayerCallback callback : callbacks) {
-                callback.onBuffering();
+    public boolean onInfo(MediaPlayer player, int what, int extra) {
+        if (player != mediaPlayer) {
+            return false;
+        } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+            if (!isEpisode && streamProxy != null) {
+                // The relay's buffer has run dry, the server may have stalled.
+                streamProxy.stall(mediaUrl);
             }
+            postBuffering(true);
             return true;
         } else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
-            for (PlayerCallback callback : callbacks) {
-                callback.onPlaying();
-            }
+            postBuffering(false);
             return true;
         }
 
@@ -436,9 +1564,63 @@ public class PlayerService extends Service implements MediaPlayer.OnPreparedList
         public void onError(Throwable t);
 
         /**
-         * Called when a new JSON info object is received.
+         * Called when the status of the live stream has changed, and with the
+         * current status right after registering.
+         */
+        public void onLiveStatus(LiveStatus status);
+    }
+
+    /**
+     * Interface that clients wishing to follow downloads should implement.
+     */
+    public interface DownloadCallback {
+        /**
+         * Called when a download has made progress.
+         *
+         * @param url   The URL of the episode's media file.
+         * @param bytes The number of bytes downloaded.
+         * @param total The size of the file, or -1 if unknown.
+         */
+        public void onDownloadProgress(String url, long bytes, long total);
+
+        /**
+         * Called when a download is complete.
+         *
+         * @param url The URL of the episode's media file.
          */
-        public void onJsonInfo(JSONObject info);
+        public void onDownloadFinished(String url);
+
+        /**
+         * Called when a download has failed.
+         *
+         * @param url The URL of the episode's media file.
+         * @param t   The error.
+         */
+        public void onDownloadFailed(String url, Throwable t);
+    }
+
+    /**
+     * Interface that clients wishing to show the queue should implement.
+     */
+    public interface QueueCallback {
+        /**
+         * Called when the queue has changed.
+         *
+         * @param queue The queued episodes, the next one first.
+         */
+        public void onQueueChanged(List<Episode> queue);
+    }
+
+    /**
+     * What the player has done since the callbacks were last told, guarded
+     * by itself.
+     */
+    private static class EventBatch {
+        State   state = State.IDLE; // The latest state.
+        boolean stopped;            // Whether the player was stopped on the way there.
+        boolean failed;             // Whether an error occurred on the way there.
+        int     buffering;          // 1 if buffering started last, -1 if it ended, else 0.
+        boolean posted;             // Whether dispatching is on its way to the main thread.
     }
 
     /**
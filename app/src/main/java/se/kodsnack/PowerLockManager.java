@@ -0,0 +1,162 @@
+package se.kodsnack;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Holds the wake lock and the Wi-Fi lock exactly while something needs them:
+ * the wake lock while audio is playing or episodes are downloading, and the
+ * Wi-Fi lock while the audio comes from the network or episodes are
+ * downloading. Paused, stopped and failed playback holds neither, so an idle
+ * service doesn't keep the device awake. Playback that is about to start,
+ * e.g. the next episode in the queue, counts as playing.
+ *
+ * How long each lock has been held is added up, and logged by
+ * {@link #toString()}.
+ *
+ * All methods are thread safe.
+ */
+final class PowerLockManager {
+    private static final String TAG = PowerLockManager.class.getSimpleName();
+
+    private final PowerManager powerManager; // For checking whether the screen is on.
+    private final Lock         wakeLock;     // Keeps the CPU running.
+    private final Lock         wifiLock;     // Keeps Wi-Fi on.
+    private boolean            playing;      // Whether audio is playing.
+    private boolean            streaming;    // Whether the playing audio comes from the network.
+    private boolean            downloading;  // Whether episodes are downloading.
+
+    PowerLockManager(Context context) {
+        final Context app = context.getApplicationContext();
+        this.powerManager = (PowerManager) app.getSystemService(Context.POWER_SERVICE);
+        final WifiManager wifiManager = (WifiManager) app.getSystemService(Context.WIFI_SERVICE);
+
+        final PowerManager.WakeLock wake =
+                powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wake.setReferenceCounted(false);
+        this.wakeLock = new Lock("Wake lock") {
+            void acquire() {
+                wake.acquire();
+            }
+
+            void release() {
+                wake.release();
+            }
+        };
+
+        final WifiManager.WifiLock wifi = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL,
+                                                                     TAG);
+        wifi.setReferenceCounted(false);
+        this.wifiLock = new Lock("Wi-Fi lock") {
+            void acquire() {
+                wifi.acquire();
+            }
+
+            void release() {
+                wifi.release();
+            }
+        };
+    }
+
+    /**
+     * Sets whether audio is playing.
+     *
+     * @param playing   Whether audio is playing.
+     * @param streaming Whether it comes from the network, as opposed to a
+     *                  downloaded file.
+     */
+    synchronized void setPlaying(boolean playing, boolean streaming) {
+        this.playing   = playing;
+        this.streaming = streaming;
+        update();
+    }
+
+    /**
+     * Sets whether episodes are downloading.
+     */
+    synchronized void setDownloading(boolean downloading) {
+        this.downloading = downloading;
+        update();
+    }
+
+    /**
+     * Releases both locks, whatever is going on.
+     */
+    synchronized void releaseAll() {
+        playing     = false;
+        downloading = false;
+        update();
+    }
+
+    /**
+     * Returns whether the screen is on, i.e. whether anyone might be
+     * looking at the app.
+     */
+    @SuppressWarnings("deprecation")
+    boolean isInteractive() {
+        // isInteractive() needs API level 20.
+        return powerManager.isScreenOn();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return wakeLock + ", " + wifiLock;
+    }
+
+    private void update() {
+        wakeLock.set(playing || downloading);
+        wifiLock.set(playing && streaming || downloading);
+    }
+
+    /**
+     * A lock, and how long it has been held.
+     */
+    private abstract static class Lock {
+        final String name;      // Name of the lock, for logging.
+        boolean      held;      // Whether the lock is held.
+        long         heldSince; // When the lock was acquired (elapsed realtime), if held.
+        long         heldTime;  // How long the lock was held before that (ms).
+        int          count;     // How many times the lock has been acquired.
+
+        Lock(String name) {
+            this.name = name;
+        }
+
+        abstract void acquire();
+
+        abstract void release();
+
+        /**
+         * Acquires or releases the lock, unless it's already held or
+         * released.
+         */
+        void set(boolean hold) {
+            if (hold == held) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            if (hold) {
+                acquire();
+                heldSince = now;
+                count++;
+            } else {
+                release();
+                heldTime += now - heldSince;
+                Log.d(TAG, name + " released after " + (now - heldSince) + " ms");
+            }
+            held = hold;
+        }
+
+        long getHeldTime() {
+            return heldTime + (held ? SystemClock.elapsedRealtime() - heldSince : 0);
+        }
+
+        @Override
+        public String toString() {
+            return name + " held " + count + " times for " + getHeldTime() + " ms";
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package se.kodsnack.ui;
 
 import android.content.Context;
-import android.graphics.Typeface;
+import android.content.res.TypedArray;
 import android.util.AttributeSet;
 import android.widget.TextView;
 
+import se.kodsnack.R;
+
 /**
- * Subclass of TextView to use a custom font.
+ * Subclass of TextView to use a custom font. The font is given by the font
+ * attribute (a path in the assets) and defaults to
+ * {@link Typefaces#DEFAULT_FONT}. Typefaces are shared through
+ * {@link Typefaces}, so inflating many of these doesn't load the font again.
  *
  * @author Erik Jansson<erikjansson90@gmail.com>
  */
@@ -15,26 +20,39 @@ public class FontTextView extends TextView {
     public FontTextView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         if (!isInEditMode())
-            init();
+            init(attrs);
     }
 
     public FontTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
         if (!isInEditMode())
-            init();
+            init(attrs);
     }
 
     public FontTextView(Context context) {
         super(context);
         if (!isInEditMode())
-            init();
+            init(null);
     }
 
-    private void init() {
+    private void init(AttributeSet attrs) {
+        String font = null;
+        if (attrs != null) {
+            TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.FontTextView);
+            try {
+                font = a.getString(R.styleable.FontTextView_font);
+            } finally {
+                a.recycle();
+            }
+        }
+        if (font == null) {
+            font = Typefaces.DEFAULT_FONT;
+        }
+
         int style = 0;
         if (getTypeface() != null) {
             style = getTypeface().getStyle();
         }
-        setTypeface(Typeface.createFromAsset(getContext().getAssets(), "fonts/vt323.ttf"), style);
+        setTypeface(Typefaces.get(getContext(), font, style), style);
     }
 }
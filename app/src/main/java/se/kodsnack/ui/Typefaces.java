@@ -0,0 +1,50 @@
+package se.kodsnack.ui;
+
+import android.content.Context;
+import android.graphics.Typeface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide registry of the typefaces loaded from the app's assets.
+ *
+ * Typeface.createFromAsset() reads and parses the font file every time it's
+ * called, so each font (and style of it) is only created once here and then
+ * shared by every view using it.
+ */
+public final class Typefaces {
+    /** The font used throughout the app. */
+    public static final String DEFAULT_FONT = "fonts/vt323.ttf";
+
+    /** Loaded typefaces by asset path, indexed by style (NORMAL to BOLD_ITALIC). */
+    private static final Map<String, Typeface[]> typefaces = new HashMap<>();
+
+    private Typefaces() { }
+
+    /**
+     * Returns a typeface from the app's assets, loading it if needed.
+     *
+     * @param context Context to get the assets from.
+     * @param asset   Path of the font in the assets, e.g. {@link #DEFAULT_FONT}.
+     * @param style   The style, one of the Typeface.NORMAL, BOLD, ITALIC or BOLD_ITALIC.
+     * @return The shared typeface.
+     */
+    public static synchronized Typeface get(Context context, String asset, int style) {
+        if (style < Typeface.NORMAL || style > Typeface.BOLD_ITALIC) {
+            throw new IllegalArgumentException("Unknown typeface style: " + style);
+        }
+
+        Typeface[] styles = typefaces.get(asset);
+        if (styles == null) {
+            styles = new Typeface[Typeface.BOLD_ITALIC + 1];
+            styles[Typeface.NORMAL] = Typeface.createFromAsset(
+                    context.getApplicationContext().getAssets(), asset);
+            typefaces.put(asset, styles);
+        }
+        if (styles[style] == null) {
+            styles[style] = Typeface.create(styles[Typeface.NORMAL], style);
+        }
+        return styles[style];
+    }
+}
@@ -9,9 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 /**
@@ -33,6 +31,24 @@ public class AtomParser {
     // We don't use XML namespaces
     private static final String ns = null;
 
+    private final Episode         newestKnown;  // Episode to stop parsing at, or null.
+    private final EpisodeListener listener;     // Listener to hand episodes to, or null.
+    private boolean               reachedKnown; // Whether newestKnown has been reached.
+    private final int[]           textBounds;   // Start and length of the parser's current text.
+
+    /**
+     * Creates a parser. The read methods are package private rather than
+     * private so that the benchmarks can drive them one step at a time.
+     *
+     * @param newestKnown Episode to stop parsing at, or null to parse the whole feed.
+     * @param listener    Listener to hand each episode to as soon as it's parsed, or null.
+     */
+    AtomParser(Episode newestKnown, EpisodeListener listener) {
+        this.newestKnown = newestKnown;
+        this.listener    = listener;
+        this.textBounds  = new int[2];
+    }
+
     /**
      * Parse the Atom feed at a URL, returns a list of {@link Episode}s.
      *
@@ -43,27 +59,90 @@ public class AtomParser {
                                                          // requires too high API level.
     public static List<Episode> parse(String url)
             throws XmlPullParserException, IOException, ParseException {
-        final AtomParser  atomParser = new AtomParser();
-        final InputStream in         = new URL(url).openStream();
+        final InputStream in = new URL(url).openStream();
 
         try {
-            final XmlPullParser parser = Xml.newPullParser();
-            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-            parser.setInput(in, null);
-            parser.nextTag();
-            return atomParser.readFeed(parser);
+            return parse(in);
         } finally {
             in.close();
         }
     }
 
+    /**
+     * Parse an Atom feed from a stream, returns a list of {@link Episode}s.
+     * The stream is not closed.
+     *
+     * @param in The stream to read the feed from.
+     * @return List of {@link se.kodsnack.util.Episode} objects.
+     */
+    public static List<Episode> parse(InputStream in)
+            throws XmlPullParserException, IOException, ParseException {
+        return parse(in, null);
+    }
+
+    /**
+     * Parse the episodes newer than an already known episode from a stream.
+     * Since new episodes are always added at the top of the feed, parsing
+     * stops as soon as the known episode is reached, leaving the rest of the
+     * stream unread. The stream is not closed.
+     *
+     * @param in          The stream to read the feed from.
+     * @param newestKnown The newest episode already known, or null to parse the whole feed.
+     * @return List of the {@link se.kodsnack.util.Episode}s newer than newestKnown.
+     */
+    public static List<Episode> parse(InputStream in, Episode newestKnown)
+            throws XmlPullParserException, IOException, ParseException {
+        return parse(in, newestKnown, null);
+    }
+
+    /**
+     * Parse the episodes newer than an already known episode from a stream,
+     * handing each episode to a listener as soon as it has been parsed. This
+     * lets the episodes at the top of the feed be shown while the rest of it
+     * is still being downloaded. The stream is not closed.
+     *
+     * @param in          The stream to read the feed from.
+     * @param newestKnown The newest episode already known, or null to parse the whole feed.
+     * @param listener    The listener to hand the episodes to, or null.
+     * @return List of the {@link se.kodsnack.util.Episode}s newer than newestKnown.
+     */
+    public static List<Episode> parse(InputStream in, Episode newestKnown,
+                                      EpisodeListener listener)
+            throws XmlPullParserException, IOException, ParseException {
+        return new AtomParser(newestKnown, listener).read(in);
+    }
+
+    /**
+     * Parse the episodes newer than the known episode from a stream. The
+     * stream is not closed.
+     *
+     * @param in The stream to read the feed from.
+     * @return List of the {@link se.kodsnack.util.Episode}s newer than newestKnown.
+     */
+    List<Episode> read(InputStream in)
+            throws XmlPullParserException, IOException, ParseException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(in, null);
+        parser.nextTag();
+        return readFeed(parser);
+    }
+
+    /**
+     * Returns whether parsing stopped at the known episode. If not, the whole
+     * feed was parsed and the episodes read are all there are.
+     */
+    boolean hasReachedKnown() {
+        return reachedKnown;
+    }
+
     /**
      * Decode the feed and return a list of the episodes in the feeds.
      *
      * @param parser Incoming XMl
      * @return List of {@link se.kodsnack.util.Episode} objects.
      */
-    private List<Episode> readFeed(XmlPullParser parser)
+    List<Episode> readFeed(XmlPullParser parser)
             throws XmlPullParserException, IOException, ParseException {
         List<Episode> entries = new ArrayList<>();
 
@@ -76,6 +155,9 @@ public class AtomParser {
             // Look for the <channel> tag.
             if (parser.getName().equals(TAG_CHANNEL)) {
                 entries = readChannel(parser);
+                if (reachedKnown) {
+                    break;
+                }
             } else {
                 skip(parser);
             }
@@ -90,7 +172,7 @@ public class AtomParser {
      * @param parser The parser to parse from.
      * @return A list of the episodes in the Atom.
      */
-    private List<Episode> readChannel(XmlPullParser parser)
+    List<Episode> readChannel(XmlPullParser parser)
             throws XmlPullParserException, IOException, ParseException {
         List<Episode> episodes = new ArrayList<>();
 
@@ -102,7 +184,15 @@ public class AtomParser {
             //Log.d("AtomParser", "Name: " + name);
             // Look for the <item> tag.
             if (parser.getName().equals(TAG_ITEM)) {
-                episodes.add(readItem(parser));
+                final Episode episode = readItem(parser);
+                if (isKnown(episode)) {
+                    reachedKnown = true;
+                    break;
+                }
+                episodes.add(episode);
+                if (listener != null) {
+                    listener.onEpisode(episode);
+                }
             } else {
                 skip(parser);
             }
@@ -111,13 +201,29 @@ public class AtomParser {
         return episodes;
     }
 
+    /**
+     * Checks whether an episode is the newest known episode (or older).
+     * Episodes are identified by their enclosure URL, with the publishing date
+     * as fallback in case the known episode has been removed from the feed.
+     */
+    private boolean isKnown(Episode episode) {
+        if (newestKnown == null) {
+            return false;
+        }
+        if (newestKnown.url != null && newestKnown.url.equals(episode.url)) {
+            return true;
+        }
+        return newestKnown.publishedDate != 0 && episode.publishedDate != 0
+                && episode.publishedDate <= newestKnown.publishedDate;
+    }
+
     /**
      * Parses the contents of an item.
      *
      * @param parser The parser.
      * @return A new Episode parsed from the feed.
      */
-    private Episode readItem(XmlPullParser parser)
+    Episode readItem(XmlPullParser parser)
             throws XmlPullParserException, IOException, ParseException {
         parser.require(XmlPullParser.START_TAG, ns, TAG_ITEM);
         String title = null;
@@ -144,10 +250,7 @@ public class AtomParser {
                     }
                     break;
                 case TAG_PUBLISHED:
-                    // TODO: Does this date parsing work?
-                    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z");
-                    Date date = format.parse(readBasicTag(parser, TAG_PUBLISHED));
-                    publishedOn = date.getTime();
+                    publishedOn = readDate(parser);
                     break;
                 case TAG_DURATION:
                     duration = readBasicTag(parser, TAG_DURATION);
@@ -175,6 +278,26 @@ public class AtomParser {
         return result;
     }
 
+    /**
+     * Reads the RFC 822 date in a pubDate tag. The date is parsed straight
+     * from the parser's character buffer, without creating a String.
+     *
+     * @param parser Parser object.
+     * @return The date in milliseconds since the epoch, or 0 if the tag is empty.
+     */
+    private long readDate(XmlPullParser parser)
+            throws IOException, XmlPullParserException, ParseException {
+        parser.require(XmlPullParser.START_TAG, ns, TAG_PUBLISHED);
+        long date = 0;
+        if (parser.next() == XmlPullParser.TEXT) {
+            final char[] ch = parser.getTextCharacters(textBounds);
+            date = Rfc822Date.parse(ch, textBounds[0], textBounds[1]);
+            parser.nextTag();
+        }
+        parser.require(XmlPullParser.END_TAG, ns, TAG_PUBLISHED);
+        return date;
+    }
+
     /**
      * Processes enclosure tags in the feed.
      */
@@ -220,4 +343,16 @@ public class AtomParser {
             }
         }
     }
+
+    /**
+     * Interface for receiving episodes while the feed is being parsed.
+     */
+    public interface EpisodeListener {
+        /**
+         * Called on the parsing thread for each episode, in feed order.
+         *
+         * @param episode The episode that was just parsed.
+         */
+        public void onEpisode(Episode episode);
+    }
 }
@@ -0,0 +1,179 @@
+package se.kodsnack.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Set of callbacks that can be changed from any thread while it's being
+ * iterated on another.
+ *
+ * The callbacks are kept in an array that is never modified; every change
+ * swaps in a modified copy with a compare-and-set, so nothing ever locks and
+ * iterating a {@link #snapshot()} never sees a change halfway through. That
+ * suits callbacks, which are iterated a lot more often than they change.
+ *
+ * Callbacks can be held weakly, so that e.g. a fragment that forgets to
+ * unregister itself can still be garbage collected. Weak callbacks that have
+ * been collected are dropped the next time the callbacks are iterated.
+ *
+ * @param <T> The type of the callbacks.
+ */
+public final class CallbackRegistry<T> {
+    private static final Entry[] EMPTY = new Entry[0];
+
+    private final AtomicReference<Entry[]> entries; // The callbacks, never modified in place.
+
+    public CallbackRegistry() {
+        this.entries = new AtomicReference<>(EMPTY);
+    }
+
+    /**
+     * Adds a callback, unless it has been added already.
+     *
+     * @param callback The callback.
+     */
+    public void add(T callback) {
+        add(new Entry(callback, false));
+    }
+
+    /**
+     * Adds a callback that is only weakly referenced, unless it has been
+     * added already. The caller has to keep a reference to it.
+     *
+     * @param callback The callback.
+     */
+    public void addWeak(T callback) {
+        add(new Entry(callback, true));
+    }
+
+    /**
+     * Removes a callback.
+     *
+     * @param callback The callback.
+     * @return Whether it had been added.
+     */
+    public boolean remove(T callback) {
+        while (true) {
+            final Entry[] current = entries.get();
+            final int index = indexOf(current, callback);
+            if (index < 0) {
+                return false;
+            }
+            if (entries.compareAndSet(current, without(current, index))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes all callbacks.
+     */
+    public void clear() {
+        entries.set(EMPTY);
+    }
+
+    /**
+     * Returns whether there are no callbacks.
+     */
+    public boolean isEmpty() {
+        return snapshot().isEmpty();
+    }
+
+    /**
+     * Returns the callbacks as they are right now. Later changes don't
+     * affect the returned list.
+     */
+    public List<T> snapshot() {
+        final Entry[] current = entries.get();
+        final List<T> callbacks = new ArrayList<>(current.length);
+        boolean collected = false;
+        for (Entry entry : current) {
+            final T callback = get(entry);
+            if (callback != null) {
+                callbacks.add(callback);
+            } else {
+                collected = true;
+            }
+        }
+        if (collected) {
+            purge();
+        }
+        return callbacks;
+    }
+
+    private void add(Entry entry) {
+        @SuppressWarnings("unchecked")
+        final T callback = (T) entry.get();
+        while (true) {
+            final Entry[] current = entries.get();
+            if (indexOf(current, callback) >= 0) {
+                return;
+            }
+            final Entry[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = entry;
+            if (entries.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops weak callbacks that have been collected.
+     */
+    private void purge() {
+        while (true) {
+            final Entry[] current = entries.get();
+            final List<Entry> alive = new ArrayList<>(current.length);
+            for (Entry entry : current) {
+                if (entry.get() != null) {
+                    alive.add(entry);
+                }
+            }
+            if (alive.size() == current.length
+                    || entries.compareAndSet(current, alive.toArray(new Entry[alive.size()]))) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(Entry entry) {
+        return (T) entry.get();
+    }
+
+    private static int indexOf(Entry[] entries, Object callback) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].get() == callback) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Entry[] without(Entry[] entries, int index) {
+        final Entry[] copy = new Entry[entries.length - 1];
+        System.arraycopy(entries, 0, copy, 0, index);
+        System.arraycopy(entries, index + 1, copy, index, copy.length - index);
+        return copy;
+    }
+
+    /**
+     * A callback, held strongly or weakly.
+     */
+    private static final class Entry {
+        final Object                strong; // The callback if held strongly, else null.
+        final WeakReference<Object> weak;   // The callback if held weakly, else null.
+
+        Entry(Object callback, boolean weak) {
+            this.strong = weak ? null : callback;
+            this.weak   = weak ? new WeakReference<>(callback) : null;
+        }
+
+        Object get() {
+            return weak != null ? weak.get() : strong;
+        }
+    }
+}
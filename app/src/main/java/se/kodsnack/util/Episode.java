@@ -40,7 +40,37 @@ public class Episode {
         this.publishedDate = published;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Episode)) {
+            return false;
+        }
+        final Episode other = (Episode) o;
+        return publishedDate == other.publishedDate
+                && equal(name, other.name)
+                && equal(url, other.url)
+                && equal(desc, other.desc)
+                && equal(duration, other.duration);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = url != null ? url.hashCode() : 0;
+        result = 31 * result + (int) (publishedDate ^ (publishedDate >>> 32));
+        return result;
+    }
+
     public String toString() {
         return name + " (" + url + ")";
     }
+
+    /**
+     * Null-safe equality check (Objects.equals() requires API level 19).
+     */
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
 }
@@ -0,0 +1,85 @@
+package se.kodsnack.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Keeps the last parsed list of {@link Episode}s in a file so that it can be
+ * shown immediately on a cold start, before the feed has been fetched again.
+ * The episodes are stored as an {@link EpisodeSnapshot}.
+ */
+public class EpisodeCache {
+    /** Snapshots larger than this are taken to be corrupt. */
+    private static final long MAX_SIZE = 16 * 1024 * 1024;
+
+    private final File file; // The file the episodes are cached in.
+
+    /**
+     * Creates a cache backed by the given file. The file does not need to
+     * exist yet.
+     *
+     * @param file The file to keep the cached episodes in.
+     */
+    public EpisodeCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the cached episodes with a single read of the whole file.
+     *
+     * @return The cached episodes or null if there is no (usable) cache, e.g.
+     *         if it's corrupt or was written by an older version of the app.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public List<Episode> read() {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final long size = in.length();
+                if (size > MAX_SIZE) {
+                    return null;
+                }
+                final byte[] data = new byte[(int) size];
+                in.readFully(data);
+                return EpisodeSnapshot.decode(data, data.length);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // A broken cache is no worse than no cache at all.
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cached episodes. The file is written to a temporary file
+     * first and then renamed so that a crash never leaves a half written
+     * cache behind.
+     *
+     * @param episodes The episodes to cache.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void write(List<Episode> episodes) throws IOException {
+        final byte[] data = EpisodeSnapshot.encode(episodes);
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+}
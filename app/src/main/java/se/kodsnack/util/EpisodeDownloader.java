@@ -0,0 +1,467 @@
+package se.kodsnack.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads episodes to a {@link MediaCache} so that they can be played
+ * without a network connection.
+ *
+ * At most a fixed number of downloads run at the same time, the rest wait in
+ * line. An episode is downloaded to a .part file which is moved into the
+ * cache when it's complete. A download that's interrupted, by a flaky connection or by the
+ * app being killed, is resumed from where it stopped with an HTTP Range
+ * request. A cancelled download may take a moment to stop, so downloading
+ * the episode again waits for it, to only ever have one writer of a .part
+ * file.
+ *
+ * All methods are thread safe. The listener is called on the download
+ * threads, except {@link Listener#onActiveChanged}.
+ */
+public class EpisodeDownloader {
+    /**
+     * The state of an episode's download.
+     */
+    public enum State {
+        NONE,
+        QUEUED,
+        DOWNLOADING,
+        DOWNLOADED
+    }
+
+    /** Connect and read timeout (ms). */
+    private static final int TIMEOUT = 15000;
+
+    /** Number of attempts in a row without progress before a download fails. */
+    private static final int MAX_ATTEMPTS = 4;
+
+    /** Delay before the first retry, doubled for every following attempt (ms). */
+    private static final long RETRY_DELAY = 2000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MediaCache            cache;     // Where the episodes are stored.
+    private final Listener              listener;  // Listener for progress.
+    private final ExecutorService       executor;  // Runs the downloads.
+    private final Map<String, Download> downloads; // Queued and running downloads, by URL.
+    private final Map<String, Download> stopping;  // Cancelled downloads still running, by URL.
+
+    /**
+     * Creates a downloader.
+     *
+     * @param cache         The cache to store the episodes in.
+     * @param maxConcurrent The maximum number of downloads at the same time.
+     * @param listener      Listener for the progress of the downloads.
+     */
+    public EpisodeDownloader(MediaCache cache, int maxConcurrent, Listener listener) {
+        this.cache     = cache;
+        this.listener  = listener;
+        this.downloads = new HashMap<>();
+        this.stopping  = new HashMap<>();
+        this.executor  = new ThreadPoolExecutor(maxConcurrent, maxConcurrent,
+                                                0, TimeUnit.MILLISECONDS,
+                                                new LinkedBlockingQueue<Runnable>(),
+                                                new DownloadThreadFactory());
+    }
+
+    /**
+     * Starts downloading an episode, unless it's already downloaded or
+     * queued.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized void download(String url) {
+        if (downloads.containsKey(url) || cache.contains(url)) {
+            return;
+        }
+        final Download download = new Download(url, stopping.get(url));
+        if (downloads.isEmpty()) {
+            listener.onActiveChanged(true);
+        }
+        downloads.put(url, download);
+        executor.execute(download);
+    }
+
+    /**
+     * Cancels a queued or running download. What has been downloaded so far
+     * is kept, so downloading the episode again resumes it.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void cancel(String url) {
+        final Download download;
+        synchronized (this) {
+            download = downloads.remove(url);
+            if (download != null) {
+                stopping.put(url, download);
+                if (downloads.isEmpty()) {
+                    listener.onActiveChanged(false);
+                }
+            }
+        }
+        if (download != null) {
+            download.cancel();
+        }
+    }
+
+    /**
+     * Cancels any download of an episode and deletes it.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void delete(String url) {
+        cancel(url);
+        cache.remove(url);
+    }
+
+    /**
+     * Returns the state of an episode's download. This does no disk I/O.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The state.
+     */
+    public synchronized State getState(String url) {
+        final Download download = downloads.get(url);
+        if (download != null) {
+            return download.bytes < 0 ? State.QUEUED : State.DOWNLOADING;
+        }
+        return cache.contains(url) ? State.DOWNLOADED : State.NONE;
+    }
+
+    /**
+     * Returns how much of a running download is done.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The progress in percent, or -1 if it's unknown or nothing is
+     *         being downloaded.
+     */
+    public synchronized int getProgress(String url) {
+        final Download download = downloads.get(url);
+        return download != null ? download.percent() : -1;
+    }
+
+    /**
+     * Stops all downloads. Their .part files are kept so that they can be
+     * resumed by another downloader.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            for (Download download : downloads.values()) {
+                download.cancel();
+            }
+            if (!downloads.isEmpty()) {
+                downloads.clear();
+                listener.onActiveChanged(false);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private synchronized void finished(Download download) {
+        if (downloads.get(download.url) == download) {
+            downloads.remove(download.url);
+            if (downloads.isEmpty()) {
+                listener.onActiveChanged(false);
+            }
+        }
+    }
+
+    private synchronized void exited(Download download) {
+        if (stopping.get(download.url) == download) {
+            stopping.remove(download.url);
+        }
+    }
+
+    private static long parseLong(String s, long fallback) {
+        try {
+            return s != null ? Long.parseLong(s.trim()) : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Returns the total size from a Content-Range header, e.g. 1000 from
+     * "bytes 500-999/1000".
+     */
+    private static long parseTotal(String contentRange) {
+        final int slash = contentRange != null ? contentRange.indexOf('/') : -1;
+        return slash >= 0 ? parseLong(contentRange.substring(slash + 1), -1) : -1;
+    }
+
+    /**
+     * Returns the first byte from a Content-Range header, e.g. 500 from
+     * "bytes 500-999/1000".
+     */
+    private static long parseStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = contentRange.indexOf('-');
+        return dash >= 0 ? parseLong(contentRange.substring(6, dash), -1) : -1;
+    }
+
+    /**
+     * A queued or running download.
+     */
+    private class Download implements Runnable {
+        final String   url;
+        final File     part;
+        final Download previous; // Cancelled download of the same file to wait for, or null.
+
+        volatile long              bytes = -1; // Bytes downloaded, -1 until started.
+        volatile long              total = -1; // Size of the file, -1 if unknown.
+        volatile boolean           cancelled;  // Whether the download has been cancelled.
+        volatile HttpURLConnection connection; // The current connection, if any.
+        boolean                    exited;     // Whether run() has returned, guarded by this.
+
+        Download(String url, Download previous) {
+            this.url      = url;
+            this.part     = cache.getPartFile(url);
+            this.previous = previous;
+        }
+
+        int percent() {
+            final long total = this.total;
+            return total > 0 && bytes >= 0 ? (int) (bytes * 100 / total) : -1;
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                notifyAll();
+            }
+            // Unblocks a read, interrupting the thread doesn't.
+            final HttpURLConnection connection = this.connection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Waits until the download has stopped writing the .part file.
+         */
+        synchronized void awaitExit() throws InterruptedException {
+            while (!exited) {
+                wait();
+            }
+        }
+
+        /**
+         * Waits before a retry, unless the download is cancelled.
+         *
+         * @return Whether to retry.
+         */
+        synchronized boolean await(long delay) throws InterruptedException {
+            final long end = System.currentTimeMillis() + delay;
+            for (long now = System.currentTimeMillis(); now < end && !cancelled;
+                 now = System.currentTimeMillis()) {
+                wait(end - now);
+            }
+            return !cancelled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (previous != null) {
+                    previous.awaitExit();
+                }
+                download();
+            } catch (InterruptedException e) {
+                // Shut down.
+                finished(this);
+            } finally {
+                exited(this);
+                synchronized (this) {
+                    exited = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void download() throws InterruptedException {
+            IOException error = null;
+            int attempts = 0;
+            while (!cancelled && attempts < MAX_ATTEMPTS) {
+                if (attempts > 0 && !await(RETRY_DELAY << (attempts - 1))) {
+                    break;
+                }
+
+                final long before = part.length();
+                try {
+                    transfer();
+                    finished(this);
+                    listener.onFinished(url, cache.getFile(url));
+                    return;
+                } catch (HttpException e) {
+                    // Client errors won't go away by trying again.
+                    error = e;
+                    if (e.code < 500) {
+                        break;
+                    }
+                    attempts++;
+                    continue;
+                } catch (IOException e) {
+                    error = e;
+                }
+                // Only give up when attempts in a row don't get anywhere.
+                attempts = part.length() > before ? 1 : attempts + 1;
+            }
+
+            finished(this);
+            if (!cancelled) {
+                listener.onFailed(url, error);
+            }
+        }
+
+        /**
+         * Downloads the rest of the file.
+         */
+        @SuppressWarnings("TryFinallyCanBeTryWithResources")
+        private void transfer() throws IOException {
+            long offset = part.length();
+            final HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+            c.setConnectTimeout(TIMEOUT);
+            c.setReadTimeout(TIMEOUT);
+            // Byte ranges of a compressed response can't be resumed.
+            c.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                c.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            connection = c;
+
+            try {
+                if (cancelled) {
+                    throw new IOException("Cancelled");
+                }
+
+                final int code = c.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    if (parseStart(c.getHeaderField("Content-Range")) != offset) {
+                        // Not what we asked for, start over.
+                        part.delete();
+                        throw new IOException("Unexpected range from " + url);
+                    }
+                    total = parseTotal(c.getHeaderField("Content-Range"));
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    // The server ignored the range, take the whole file.
+                    offset = 0;
+                    total = parseLong(c.getHeaderField("Content-Length"), -1);
+                } else if (code == 416 && offset > 0) {
+                    // The range starts at the end of the file, i.e. the part is complete.
+                    if (parseTotal(c.getHeaderField("Content-Range")) != offset) {
+                        part.delete();
+                        throw new IOException("Part larger than " + url);
+                    }
+                    total = offset;
+                    bytes = offset;
+                    cache.put(url, part);
+                    return;
+                } else {
+                    throw new HttpException(code, url);
+                }
+
+                bytes = offset;
+                final InputStream in = c.getInputStream();
+                final FileOutputStream out = new FileOutputStream(part, offset > 0);
+                try {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int percent = percent();
+                    int n;
+                    while (!cancelled && (n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                        bytes += n;
+                        if (percent() != percent) {
+                            percent = percent();
+                            listener.onProgress(url, bytes, total);
+                        }
+                    }
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                    in.close();
+                }
+
+                if (cancelled) {
+                    throw new IOException("Cancelled");
+                }
+                if (total >= 0 && bytes != total) {
+                    throw new IOException("Truncated download of " + url);
+                }
+                cache.put(url, part);
+            } finally {
+                connection = null;
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Creates low priority threads for the downloads, so that they don't
+     * compete with the UI and playback.
+     */
+    private static class DownloadThreadFactory implements ThreadFactory {
+        private int count;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "EpisodeDownloader-" + ++count);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+
+    /**
+     * Interface for following the downloads. It's called on the download
+     * threads.
+     */
+    public interface Listener {
+        /**
+         * Called when a download has made progress, at most once per percent.
+         *
+         * @param url   The URL of the episode's media file.
+         * @param bytes The number of bytes downloaded.
+         * @param total The size of the file, or -1 if unknown.
+         */
+        public void onProgress(String url, long bytes, long total);
+
+        /**
+         * Called when a download is complete.
+         *
+         * @param url  The URL of the episode's media file.
+         * @param file The downloaded file.
+         */
+        public void onFinished(String url, File file);
+
+        /**
+         * Called when a download has failed for good. Not called for
+         * cancelled downloads.
+         *
+         * @param url The URL of the episode's media file.
+         * @param e   The last error.
+         */
+        public void onFailed(String url, IOException e);
+
+        /**
+         * Called when the first download is queued, and when the last one
+         * has finished, failed or been cancelled. It's called on the thread
+         * that caused it, with the downloader locked, so it must not call
+         * the downloader.
+         *
+         * @param active Whether any downloads are queued or running.
+         */
+        public void onActiveChanged(boolean active);
+    }
+}
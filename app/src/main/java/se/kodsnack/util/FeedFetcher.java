@@ -0,0 +1,255 @@
+package se.kodsnack.util;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fetches Kodsnack's feed using conditional HTTP requests.
+ *
+ * The ETag and Last-Modified validators of the last full download are kept
+ * in a file and sent along with the next request. If the server answers with
+ * 304 Not Modified, the feed is neither downloaded nor parsed again and the
+ * cached episodes are returned as they are.
+ *
+ * When the feed has changed, only the episodes newer than the newest cached
+ * one are parsed and the connection is closed as soon as a known episode is
+ * reached. The new episodes are then merged into the cached ones. If no known
+ * episode is reached, the whole feed has been parsed and replaces the cached
+ * episodes, which drops those that have been removed from the feed.
+ *
+ * The validators vouch for the cached episodes, so they're only written by
+ * {@link #saveValidators()}, once the episodes they belong to have been
+ * cached. The file is read by the first fetch, on the caller's thread.
+ */
+public class FeedFetcher {
+    /** Version of the validator file format. */
+    private static final int VERSION = 1;
+
+    /** Timeouts for connecting to and reading from the server (ms). */
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT    = 15000;
+
+    /**
+     * How a {@link Result} was obtained.
+     */
+    public enum Source {
+        /** The cached episodes were still fresh, no request was made. */
+        HIT,
+        /** The server confirmed that the cached episodes are up to date. */
+        REVALIDATED,
+        /** The feed was downloaded and parsed. */
+        DOWNLOADED
+    }
+
+    /**
+     * The outcome of {@link #fetch(List, AtomParser.EpisodeListener)}.
+     */
+    public static class Result {
+        /** The episodes in the feed. */
+        public final List<Episode> episodes;
+
+        /** How the episodes were obtained. */
+        public final Source source;
+
+        Result(List<Episode> episodes, Source source) {
+            this.episodes = episodes;
+            this.source   = source;
+        }
+    }
+
+    private final String url;           // URL of the feed.
+    private final File   validatorFile; // File holding the validators between runs.
+    private String       etag;          // ETag of the last download, or null.
+    private String       lastModified;  // Last-Modified of the last download, or null.
+    private long         expires;       // Time (ms since epoch) until which no request is needed.
+    private boolean      read;          // Whether the validators have been read from the file.
+
+    /**
+     * Creates a fetcher for the feed at a URL.
+     *
+     * @param url           The URL of the feed.
+     * @param validatorFile File to keep the response validators in.
+     */
+    public FeedFetcher(String url, File validatorFile) {
+        this.url           = url;
+        this.validatorFile = validatorFile;
+    }
+
+    /**
+     * Fetches the feed unless the cached episodes are known to be up to date.
+     * The validators of the response are kept in memory until
+     * {@link #saveValidators()} is called.
+     *
+     * @param cached   The episodes from the last fetch, or null if there are none. Validators
+     *                 are only sent when there is something to fall back on.
+     * @param listener Listener to hand each newly parsed episode to while the feed is being
+     *                 downloaded, or null.
+     * @return The episodes in the feed and how they were obtained.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public Result fetch(List<Episode> cached, AtomParser.EpisodeListener listener)
+            throws IOException, XmlPullParserException, ParseException {
+        if (!read) {
+            readValidators();
+            read = true;
+        }
+        if (cached != null && System.currentTimeMillis() < expires) {
+            return new Result(cached, Source.HIT);
+        }
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (cached != null) {
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            final int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                expires = expiresAt(connection);
+                return new Result(cached, Source.REVALIDATED);
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response from " + url + ": " + code);
+            }
+
+            final Episode newestKnown = cached != null && !cached.isEmpty() ? cached.get(0) : null;
+            final AtomParser parser = new AtomParser(newestKnown, listener);
+            final InputStream in = connection.getInputStream();
+            final List<Episode> episodes;
+            try {
+                final List<Episode> fresh = parser.read(in);
+                episodes = parser.hasReachedKnown() ? merge(fresh, cached) : fresh;
+            } finally {
+                in.close();
+            }
+
+            etag         = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+            expires      = expiresAt(connection);
+
+            return new Result(episodes, Source.DOWNLOADED);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Saves the validators of the last fetch, to be sent by the next run.
+     * Call it only once the episodes from the fetch have been cached: saved
+     * without them, the validators would get a 304 Not Modified next time
+     * and the cache would stay out of date.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void saveValidators() throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(validatorFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeBoolean(etag != null);
+            if (etag != null) {
+                out.writeUTF(etag);
+            }
+            out.writeBoolean(lastModified != null);
+            if (lastModified != null) {
+                out.writeUTF(lastModified);
+            }
+            out.writeLong(expires);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Merges the episodes parsed before reaching a known one into the cached
+     * ones. Cached episodes that show up among the new ones are replaced by
+     * them.
+     *
+     * @param fresh  The episodes parsed from the feed, newest first.
+     * @param cached The cached episodes, newest first.
+     * @return The merged list of episodes, newest first.
+     */
+    private static List<Episode> merge(List<Episode> fresh, List<Episode> cached) {
+        final List<Episode> merged = new ArrayList<>(fresh.size() + cached.size());
+        final Set<String>   urls   = new HashSet<>();
+        merged.addAll(fresh);
+        for (Episode episode : fresh) {
+            urls.add(episode.url);
+        }
+        for (Episode episode : cached) {
+            if (!urls.contains(episode.url)) {
+                merged.add(episode);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Works out until when a response may be used without asking the server
+     * again, based on the max-age of its Cache-Control header.
+     */
+    private static long expiresAt(HttpURLConnection connection) {
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        final long maxAge = Long.parseLong(directive.substring(8));
+                        return System.currentTimeMillis() + maxAge * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void readValidators() {
+        if (!validatorFile.exists()) {
+            return;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(validatorFile)));
+            try {
+                if (in.readInt() == VERSION) {
+                    etag         = in.readBoolean() ? in.readUTF() : null;
+                    lastModified = in.readBoolean() ? in.readUTF() : null;
+                    expires      = in.readLong();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Without validators we simply download the whole feed.
+            etag         = null;
+            lastModified = null;
+            expires      = 0;
+        }
+    }
+}
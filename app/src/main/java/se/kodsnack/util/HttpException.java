@@ -0,0 +1,18 @@
+package se.kodsnack.util;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server responds with an unexpected status.
+ */
+class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** The HTTP status code. */
+    final int code;
+
+    HttpException(int code, String url) {
+        super("HTTP " + code + " from " + url);
+        this.code = code;
+    }
+}
@@ -0,0 +1,378 @@
+package se.kodsnack.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Relays the live stream to the media player, hides short drops of the
+ * connection to the server, and lets the listener pause and rewind the
+ * broadcast.
+ *
+ * A thread reads the stream from the server into a ring file on disk, which
+ * keeps the last {@link #CAPACITY} bytes of the broadcast however long it
+ * goes on. When the connection drops, or stalls for {@link #STALL_TIMEOUT},
+ * the thread connects again, waiting longer between each attempt, while the
+ * player goes on playing what's in the file. The player is started
+ * {@link #PREROLL} behind the server, so a drop shorter than that isn't
+ * heard. Audio sent by the server during the drop is lost, so the stream
+ * jumps ahead by that much when it's back.
+ *
+ * Every player reads from its own position in the file. A paused player
+ * simply stops reading, and picks up where it was when it's resumed, and a
+ * player can be started further behind the broadcast. The file is sent to
+ * the players with {@link FileChannel#transferTo}, so the audio isn't copied
+ * through the Java heap on its way out.
+ *
+ * The relay gives up, and ends the stream to the players, when the server
+ * says that the stream is gone (e.g. when the show is over), or when
+ * nothing has come from it for {@link #MAX_OUTAGE}.
+ *
+ * Like {@link StreamProxy}, this class is independent of Android. All
+ * methods are thread safe.
+ */
+public class LiveRelay implements Runnable {
+    /** Connect timeout, and how long the stream may stall before reconnecting (ms). */
+    private static final int STALL_TIMEOUT = 5000;
+
+    /** How long a stall must have been going on for {@link #stall()} to reconnect (ms). */
+    private static final long STALL_TIME = 1000;
+
+    /** How long to go on reconnecting without getting anything before giving up (ms). */
+    private static final long MAX_OUTAGE = 30000;
+
+    /** Delay before the first reconnect, doubled for every following attempt (ms). */
+    private static final long RETRY_DELAY = 250;
+
+    /** Longest delay between reconnects (ms). */
+    private static final long MAX_RETRY_DELAY = 4000;
+
+    /** How far behind the server players are started at the least (ms). */
+    static final long PREROLL = 8000;
+
+    /** Bytes per second of the stream, unless the server says: 128 kbit/s. */
+    static final int DEFAULT_BYTE_RATE = 128 * 1000 / 8;
+
+    /** Size of the ring file: 60 minutes at 128 kbit/s. */
+    static final int CAPACITY = 60 * 60 * DEFAULT_BYTE_RATE;
+
+    /** The oldest part of the ring file, which is overwritten next, isn't served. */
+    private static final int GUARD = 1024 * 1024;
+
+    /** Most bytes sent to a player at a time. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final String                   url;         // URL of the live stream.
+    private final File                     file;        // The ring file.
+    private final Set<WritableByteChannel> players;     // Connections being served.
+    private volatile HttpURLConnection     connection;  // The connection to the server, or null.
+    private FileChannel                    ring;        // The ring file, once started.
+    private String                         contentType; // Type of the stream, once connected.
+    private int                            byteRate;    // Bytes per second of the stream.
+    private long                           head;        // Number of bytes from the server so far.
+    private long                           lastDataAt;  // When something last came from the server.
+    private boolean                        ended;       // Whether nothing more will come.
+    private boolean                        stopped;     // Whether the relay has been stopped.
+
+    /**
+     * Creates a relay. It connects when it's {@link #start() started}.
+     *
+     * @param url  The URL of the live stream.
+     * @param file The file to keep the stream in while the relay runs. It's
+     *             overwritten, and deleted when the relay is stopped.
+     */
+    public LiveRelay(String url, File file) {
+        this.url      = url;
+        this.file     = file;
+        this.players  = new HashSet<>();
+        this.byteRate = DEFAULT_BYTE_RATE;
+    }
+
+    /**
+     * Starts reading from the server.
+     */
+    public void start() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        synchronized (this) {
+            ring = raf.getChannel();
+            lastDataAt = System.currentTimeMillis();
+        }
+        new Thread(this, "LiveRelay").start();
+    }
+
+    /**
+     * Stops reading from the server, ends the stream to the players and
+     * deletes the ring file.
+     */
+    public void stop() {
+        final FileChannel ring;
+        synchronized (this) {
+            stopped = true;
+            ring = this.ring;
+            notifyAll();
+        }
+        disconnect();
+        try {
+            ring.close();
+        } catch (IOException e) {
+            // Deleting anyway.
+        }
+        file.delete();
+    }
+
+    /**
+     * Tells the relay that the player has run out of data, e.g. from a
+     * buffering event. If nothing has come from the server for a moment,
+     * it reconnects right away instead of waiting for the stall timeout.
+     */
+    public void stall() {
+        final boolean stalled;
+        synchronized (this) {
+            stalled = !ended && System.currentTimeMillis() - lastDataAt > STALL_TIME;
+        }
+        if (stalled) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Stops serving a player, e.g. when its connection has been closed
+     * while waiting for the server.
+     *
+     * @param out The connection to the player.
+     */
+    public synchronized void cancel(WritableByteChannel out) {
+        players.remove(out);
+        notifyAll();
+    }
+
+    /**
+     * Returns the type of the stream, waiting until the server has said or
+     * the relay has given up.
+     *
+     * @return The type, or null if the relay gave up before connecting.
+     */
+    public synchronized String getContentType() throws InterruptedException {
+        while (contentType == null && head == 0 && !ended) {
+            wait();
+        }
+        return contentType;
+    }
+
+    /**
+     * Sends the stream to a player, until the relay ends or the player
+     * disconnects. Several players can be served at once.
+     *
+     * @param out    The connection to the player.
+     * @param behind How far behind the server to start (ms). It's at least
+     *               {@link #PREROLL}, and at most as far back as the file
+     *               goes.
+     */
+    public void serve(WritableByteChannel out, long behind)
+            throws IOException, InterruptedException {
+        long pos;
+        synchronized (this) {
+            players.add(out);
+            // Build up the head start first.
+            final long preroll = PREROLL * byteRate / 1000;
+            while (head < preroll && !ended && players.contains(out)) {
+                wait();
+            }
+            pos = Math.max(getOldest(), head - Math.max(behind, PREROLL) * byteRate / 1000);
+        }
+
+        try {
+            send(out, pos);
+        } finally {
+            synchronized (this) {
+                players.remove(out);
+            }
+        }
+    }
+
+    private void send(WritableByteChannel out, long pos)
+            throws IOException, InterruptedException {
+        while (true) {
+            final long end;
+            synchronized (this) {
+                while (pos >= head && !ended && players.contains(out)) {
+                    wait();
+                }
+                if (pos >= head || !players.contains(out)) {
+                    return;
+                }
+                // A player paused for longer than the file goes back skips ahead.
+                pos = Math.max(pos, getOldest());
+                end = head;
+            }
+
+            final long at = pos % CAPACITY;
+            final long count = Math.min(Math.min(end - pos, CHUNK_SIZE), CAPACITY - at);
+            final long sent = ring.transferTo(at, count, out);
+            synchronized (this) {
+                // The transfer is made without the lock, and blocks while the player doesn't
+                // read, e.g. when it's paused. If the stream has come round to what was being
+                // sent meanwhile, what's left of it has been overwritten, so skip it.
+                pos = Math.max(pos + sent, getOldest());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int attempts = 0;
+        try {
+            while (!isStopped()) {
+                final long before = getHead();
+                try {
+                    final InputStream in = connect();
+                    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                        write(buffer, n);
+                    }
+                } catch (HttpException e) {
+                    // The stream is gone, there's nothing to reconnect to.
+                    if (e.code < 500) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // Dropped, stalled or disconnected by stall() or stop().
+                } finally {
+                    disconnect();
+                }
+
+                // Reconnect right away after a drop, and back off when attempts in a row
+                // don't get anything.
+                attempts = getHead() > before ? 0 : attempts + 1;
+                final long delay = attempts > 0
+                        ? Math.min(RETRY_DELAY << Math.min(attempts - 1, 16), MAX_RETRY_DELAY) : 0;
+                if (!await(delay)) {
+                    break;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized long getHead() {
+        return head;
+    }
+
+    /**
+     * Returns the position of the oldest byte that can be served.
+     */
+    private long getOldest() {
+        return Math.max(0, head - (CAPACITY - GUARD));
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Waits before reconnecting.
+     *
+     * @return Whether to reconnect, i.e. the relay hasn't been stopped or
+     *         given up.
+     */
+    private synchronized boolean await(long delay) {
+        final long end = System.currentTimeMillis() + delay;
+        for (long now = System.currentTimeMillis(); now < end && !stopped;
+             now = System.currentTimeMillis()) {
+            try {
+                wait(end - now);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !stopped && System.currentTimeMillis() - lastDataAt < MAX_OUTAGE;
+    }
+
+    private InputStream connect() throws IOException {
+        final HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setConnectTimeout(STALL_TIMEOUT);
+        c.setReadTimeout(STALL_TIMEOUT);
+        c.setRequestProperty("Accept-Encoding", "identity");
+        synchronized (this) {
+            if (stopped) {
+                throw new IOException("Stopped");
+            }
+            connection = c;
+        }
+
+        final int code = c.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new HttpException(code, url);
+        }
+        synchronized (this) {
+            // Icecast says, but assume MP3 if the server doesn't.
+            contentType = c.getContentType() != null ? c.getContentType() : "audio/mpeg";
+            byteRate = parseByteRate(c.getHeaderField("icy-br"));
+            notifyAll();
+        }
+        return c.getInputStream();
+    }
+
+    private void disconnect() {
+        final HttpURLConnection c = connection;
+        if (c != null) {
+            connection = null;
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Adds bytes from the server to the ring file. Only called on the
+     * relay's thread, so only the head needs the lock.
+     */
+    private void write(byte[] buffer, int n) throws IOException {
+        final long start = getHead();
+        final ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+        while (src.hasRemaining()) {
+            final long at = (start + src.position()) % CAPACITY;
+            // Up to the end of the file, the rest goes to its beginning.
+            src.limit((int) Math.min(n, src.position() + CAPACITY - at));
+            ring.write(src, at);
+            src.limit(n);
+        }
+
+        synchronized (this) {
+            head += n;
+            lastDataAt = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the bytes per second of the stream from an icy-br header,
+     * e.g. 16000 from "128" or "128,128" (kbit/s).
+     */
+    private static int parseByteRate(String bitrate) {
+        if (bitrate != null) {
+            try {
+                final int kbps = Integer.parseInt(bitrate.split(",")[0].trim());
+                if (kbps > 0) {
+                    return kbps * 1000 / 8;
+                }
+            } catch (NumberFormatException e) {
+                // Not what Icecast sends, use the default.
+            }
+        }
+        return DEFAULT_BYTE_RATE;
+    }
+}
@@ -0,0 +1,101 @@
+package se.kodsnack.util;
+
+/**
+ * Immutable snapshot of the live stream's status, decoded from the Icecast
+ * JSON status feed by {@link LiveStatusDecoder}.
+ */
+public final class LiveStatus {
+    /**
+     * The show being broadcast.
+     */
+    public enum Show {
+        KODSNACK,
+        APPSNACK
+    }
+
+    /** Status when nothing is being broadcast. */
+    public static final LiveStatus OFFLINE = new LiveStatus(null, null, null, -1);
+
+    /**
+     * Whether anything is being broadcast.
+     */
+    public final boolean isLive;
+
+    /**
+     * Title of the stream, or null if it has none.
+     */
+    public final String title;
+
+    /**
+     * Name of the streaming server.
+     */
+    public final String serverName;
+
+    /**
+     * URL to play the stream from.
+     */
+    public final String listenUrl;
+
+    /**
+     * The number of listeners, or -1 if unknown.
+     */
+    public final int listeners;
+
+    /**
+     * The show being broadcast, worked out from the title.
+     */
+    public final Show show;
+
+    public LiveStatus(String title, String serverName, String listenUrl, int listeners) {
+        this.isLive     = listenUrl != null;
+        this.title      = title;
+        this.serverName = serverName;
+        this.listenUrl  = listenUrl;
+        this.listeners  = listeners;
+
+        final String displayTitle = getDisplayTitle();
+        this.show = displayTitle != null && displayTitle.toLowerCase().contains("appsnack")
+                ? Show.APPSNACK : Show.KODSNACK;
+    }
+
+    /**
+     * Returns the title to show for the stream: its title or, if it has
+     * none, the server name.
+     */
+    public String getDisplayTitle() {
+        return title != null ? title : serverName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LiveStatus)) {
+            return false;
+        }
+        final LiveStatus other = (LiveStatus) o;
+        return listeners == other.listeners
+                && equal(title, other.title)
+                && equal(serverName, other.serverName)
+                && equal(listenUrl, other.listenUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = title != null ? title.hashCode() : 0;
+        result = 31 * result + (listenUrl != null ? listenUrl.hashCode() : 0);
+        result = 31 * result + listeners;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return isLive ? getDisplayTitle() + " (" + listenUrl + ", " + listeners + " listeners)"
+                      : "offline";
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
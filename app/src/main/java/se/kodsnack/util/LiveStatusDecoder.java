@@ -0,0 +1,115 @@
+package se.kodsnack.util;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming decoder for Icecast's JSON status.
+ *
+ * Only the fields needed for a {@link LiveStatus} are picked out of
+ * icestats.source; everything else is skipped without building a JSON tree.
+ * When several mounts are streaming, source is an array and the first
+ * source that can be listened to is used.
+ */
+public final class LiveStatusDecoder {
+    private LiveStatusDecoder() { }
+
+    /**
+     * Decodes the status.
+     *
+     * @param in Reader over the JSON status, not closed.
+     * @return The decoded status, {@link LiveStatus#OFFLINE} if nothing is broadcast.
+     * @throws IOException If the JSON is malformed or isn't an Icecast status.
+     */
+    public static LiveStatus decode(Reader in) throws IOException {
+        final JsonReader reader = new JsonReader(in);
+        try {
+            LiveStatus status = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("icestats")) {
+                    status = readIcestats(reader);
+                    break;
+                } else {
+                    reader.skipValue();
+                }
+            }
+
+            if (status == null) {
+                throw new IOException("No icestats in status");
+            }
+            return status;
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Thrown by JsonReader when a value has an unexpected type.
+            throw new IOException("Malformed status: " + e.getMessage());
+        }
+    }
+
+    private static LiveStatus readIcestats(JsonReader reader) throws IOException {
+        LiveStatus status = LiveStatus.OFFLINE;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("source")) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    final LiveStatus source = readSource(reader);
+                    if (!status.isLive) {
+                        status = source;
+                    }
+                }
+                reader.endArray();
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                status = readSource(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+
+    private static LiveStatus readSource(JsonReader reader) throws IOException {
+        String title      = null;
+        String serverName = null;
+        String listenUrl  = null;
+        int    listeners  = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "server_name":
+                    serverName = reader.nextString();
+                    break;
+                case "listenurl":
+                    listenUrl = reader.nextString();
+                    break;
+                case "listeners":
+                    listeners = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (title == null && serverName == null) {
+            // Nothing to show for it, don't try to play it either.
+            return LiveStatus.OFFLINE;
+        }
+        return new LiveStatus(title, serverName, listenUrl, listeners);
+    }
+}
@@ -0,0 +1,578 @@
+package se.kodsnack.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded cache of episode media files.
+ *
+ * The cache keeps an index of its files in memory, ordered from least to
+ * most recently used (downloaded or played), so looking up an episode never
+ * touches the disk. The index is saved to the cache directory in the
+ * background whenever it changes, and read back in the background when the
+ * cache is created. Methods that need it wait for that to finish. A write
+ * that fails is tried again later.
+ *
+ * The index can still miss files, e.g. if the app is killed between moving
+ * a file into the cache and writing the index, or lose them all if it can't
+ * be read. So when it's read, it's checked against one listing of the
+ * directory: entries whose files are gone are dropped, and files it doesn't
+ * know are deleted. Files are named by a hash of their URL, so they can't
+ * be adopted into the index without it.
+ *
+ * When the files take up more than the budget, episodes that have been
+ * played to the end are evicted first and then the rest, least recently used
+ * first. The file that was just added is never evicted to make room for
+ * itself.
+ *
+ * All methods are thread safe. Evicted files are deleted right away, so
+ * that an episode can be put back in the cache as soon as it's evicted.
+ */
+public class MediaCache {
+    /** Version of the index format, bumped whenever the format changes. */
+    private static final int VERSION = 1;
+
+    /** Name of the index file in the cache directory, and of the file it's written to first. */
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_TMP_FILE = INDEX_FILE + ".tmp";
+
+    /** Time to wait before writing the index again after a write failed (ms). */
+    private static final long RETRY_DELAY = 30000;
+
+    /** Suffix of files that are still being downloaded. */
+    private static final String PART_SUFFIX = ".part";
+
+    /** Suffix of files that are being filled in by streaming, and of their ranges. */
+    private static final String SPARSE_SUFFIX = ".sparse";
+    private static final String RANGES_SUFFIX = ".ranges";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File               directory;   // Where the files are stored.
+    private final File               indexFile;   // Where the index is saved.
+    private final Map<String, Entry> entries;     // Files by URL, least recently used first.
+    private final ScheduledExecutorService io;    // Reads and writes the index.
+    private long                     maxBytes;    // The budget.
+    private long                     totalBytes;  // Size of all cached files.
+    private boolean                  loaded;      // Whether the index has been read.
+    private boolean                  savePending; // Whether the index is about to be written.
+
+    /**
+     * Creates a cache in a directory, which is created if needed, and starts
+     * reading its index in the background.
+     *
+     * @param directory The directory to keep the files in.
+     * @param maxBytes  The maximum size of all files.
+     */
+    public MediaCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.entries   = new LinkedHashMap<>();
+        this.io        = Executors.newSingleThreadScheduledExecutor();
+        this.maxBytes  = maxBytes;
+
+        io.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Changes the budget, evicting files if needed.
+     *
+     * @param maxBytes The maximum size of all files.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        awaitLoaded();
+        this.maxBytes = maxBytes;
+        trim(null);
+    }
+
+    /**
+     * Returns the size of all cached files.
+     */
+    public synchronized long size() {
+        awaitLoaded();
+        return totalBytes;
+    }
+
+    /**
+     * Returns whether an episode is cached. Once the index has been read,
+     * this does no disk I/O.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized boolean contains(String url) {
+        awaitLoaded();
+        return entries.containsKey(url);
+    }
+
+    /**
+     * Returns the cached file of an episode. Once the index has been read,
+     * this does no disk I/O.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The file, or null if the episode isn't cached.
+     */
+    public synchronized File getFile(String url) {
+        awaitLoaded();
+        final Entry entry = entries.get(url);
+        return entry != null ? new File(directory, entry.name) : null;
+    }
+
+    /**
+     * Returns the file an episode should be downloaded to before it's
+     * {@link #put} in the cache.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized File getPartFile(String url) {
+        // The directory is created along with reading the index.
+        awaitLoaded();
+        return new File(directory, fileName(url) + PART_SUFFIX);
+    }
+
+    /**
+     * Returns the file an episode is streamed to, piece by piece, before
+     * it's {@link #put} in the cache.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized File getSparseFile(String url) {
+        // The directory is created along with reading the index.
+        awaitLoaded();
+        return new File(directory, fileName(url) + SPARSE_SUFFIX);
+    }
+
+    /**
+     * Returns the file where the downloaded ranges of a
+     * {@link #getSparseFile sparse file} are kept.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized File getRangesFile(String url) {
+        // The directory is created along with reading the index.
+        awaitLoaded();
+        return new File(directory, fileName(url) + RANGES_SUFFIX);
+    }
+
+    /**
+     * Moves a downloaded file into the cache and evicts other files if the
+     * cache is over budget.
+     *
+     * @param url  The URL of the episode's media file.
+     * @param part The downloaded file, normally {@link #getPartFile} or
+     *             {@link #getSparseFile}.
+     */
+    public synchronized void put(String url, File part) throws IOException {
+        awaitLoaded();
+        final String name = fileName(url);
+        final long size = part.length();
+        // Under the lock, so that the file isn't deleted by evicting an older copy of it.
+        if (!part.renameTo(new File(directory, name))) {
+            throw new IOException("Failed to move " + part + " into the cache");
+        }
+
+        final Entry old = entries.remove(url);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        entries.put(url, new Entry(url, name, size, false));
+        totalBytes += size;
+        trim(url);
+        save();
+    }
+
+    /**
+     * Removes an episode from the cache and deletes its files.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized void remove(String url) {
+        awaitLoaded();
+        final Entry entry = entries.remove(url);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            save();
+        }
+        // Not in the background, the episode may be downloaded again right away.
+        new File(directory, fileName(url)).delete();
+        getPartFile(url).delete();
+        getSparseFile(url).delete();
+        getRangesFile(url).delete();
+    }
+
+    /**
+     * Records that an episode has been played, which makes it the most
+     * recently used.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized void markPlayed(String url) {
+        awaitLoaded();
+        final Entry entry = entries.remove(url);
+        if (entry != null) {
+            entries.put(url, entry);
+            save();
+        }
+    }
+
+    /**
+     * Records that an episode has been played to the end, which makes it
+     * one of the first to be evicted.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized void markCompleted(String url) {
+        awaitLoaded();
+        final Entry entry = entries.get(url);
+        if (entry != null && !entry.completed) {
+            entry.completed = true;
+            save();
+        }
+    }
+
+    /**
+     * Deletes all but the most recently used sparse files, so that episodes
+     * that were only streamed in part don't pile up. Sparse files aren't
+     * counted against the budget. This does disk I/O.
+     *
+     * @param keep  The number of sparse files to keep.
+     * @param inUse Sparse files that are open, which are neither deleted nor
+     *              counted.
+     */
+    public void trimSparseFiles(int keep, Set<File> inUse) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final List<File> ranges = new ArrayList<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(RANGES_SUFFIX)) {
+                final String base = name.substring(0, name.length() - RANGES_SUFFIX.length());
+                if (!inUse.contains(new File(directory, base + SPARSE_SUFFIX))) {
+                    ranges.add(file);
+                }
+            } else if (name.endsWith(SPARSE_SUFFIX) && !inUse.contains(file)) {
+                // Without its ranges, nothing in a sparse file can be used.
+                final int end = name.length() - SPARSE_SUFFIX.length();
+                if (!new File(directory, name.substring(0, end) + RANGES_SUFFIX).exists()) {
+                    file.delete();
+                }
+            }
+        }
+        Collections.sort(ranges, new Comparator<File>() {
+            public int compare(File a, File b) {
+                // Newest first.
+                return a.lastModified() < b.lastModified() ? 1
+                        : a.lastModified() > b.lastModified() ? -1 : 0;
+            }
+        });
+
+        for (int i = Math.max(0, keep - inUse.size()); i < ranges.size(); i++) {
+            final String name = ranges.get(i).getName();
+            final String base = name.substring(0, name.length() - RANGES_SUFFIX.length());
+            new File(directory, base + SPARSE_SUFFIX).delete();
+            ranges.get(i).delete();
+        }
+    }
+
+    /**
+     * Writes any pending changes to the index and stops the background
+     * thread. The cache must not be used afterwards.
+     */
+    public void close() {
+        io.shutdown();
+    }
+
+    /**
+     * Returns the name of the file an episode is stored in, a hash of its
+     * URL with the URL's extension.
+     */
+    static String fileName(String url) {
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new AssertionError(e);
+        }
+
+        final StringBuilder sb = new StringBuilder(hash.length * 2 + 4);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        // Keep the extension (if it looks like one) so that the file type is obvious.
+        final int slash = url.lastIndexOf('/');
+        final int dot   = url.lastIndexOf('.');
+        if (dot > slash && url.length() - dot <= 5 && url.indexOf('?', dot) < 0) {
+            sb.append(url.substring(dot));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Evicts files until the cache is within its budget: first episodes
+     * played to the end, then the rest, least recently used first.
+     *
+     * @param keep URL of an episode not to evict, or null.
+     */
+    private void trim(String keep) {
+        boolean evicted = false;
+        for (int pass = 0; pass < 2 && totalBytes > maxBytes; pass++) {
+            final Iterator<Entry> it = entries.values().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.url.equals(keep) || (pass == 0 && !entry.completed)) {
+                    continue;
+                }
+                it.remove();
+                totalBytes -= entry.size;
+                // Not in the background, the episode may be put back right away.
+                new File(directory, entry.name).delete();
+                evicted = true;
+            }
+        }
+
+        if (evicted) {
+            save();
+        }
+    }
+
+    /**
+     * Schedules writing the index in the background. Changes made before the
+     * write starts are written together.
+     */
+    private void save() {
+        if (!savePending) {
+            savePending = true;
+            io.execute(writeIndex);
+        }
+    }
+
+    private final Runnable writeIndex = new Runnable() {
+        public void run() {
+            final byte[] data;
+            synchronized (MediaCache.this) {
+                savePending = false;
+                data = encodeIndex();
+            }
+
+            try {
+                writeIndex(data);
+            } catch (IOException e) {
+                // The old index is still there, and is checked against the files when it's read.
+                // A full disk may have room later.
+                retrySave();
+            }
+        }
+    };
+
+    /**
+     * Schedules writing the index again after a write failed, unless a
+     * write is pending already.
+     */
+    private synchronized void retrySave() {
+        if (!savePending) {
+            try {
+                io.schedule(writeIndex, RETRY_DELAY, TimeUnit.MILLISECONDS);
+                savePending = true;
+            } catch (RejectedExecutionException e) {
+                // The cache has been closed.
+            }
+        }
+    }
+
+    private byte[] encodeIndex() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * entries.size() + 8);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.url);
+                out.writeLong(entry.size);
+                out.writeBoolean(entry.completed);
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void writeIndex(byte[] data) throws IOException {
+        final File tmp = new File(directory, INDEX_TMP_FILE);
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + indexFile);
+        }
+    }
+
+    private void load() {
+        directory.mkdirs();
+        final Map<String, Entry> read = readIndex();
+        final boolean changed = reconcile(read);
+        synchronized (this) {
+            for (Entry entry : read.values()) {
+                entries.put(entry.url, entry);
+                totalBytes += entry.size;
+            }
+            loaded = true;
+            notifyAll();
+            if (changed) {
+                save();
+            }
+            trim(null);
+        }
+    }
+
+    /**
+     * Checks the entries read from the index against the files in the
+     * directory. Entries whose files are gone are removed, and files that
+     * no entry knows are deleted. Files that are being downloaded or
+     * streamed to are left alone.
+     *
+     * @param read The entries, which are updated.
+     * @return Whether the entries changed.
+     */
+    private boolean reconcile(Map<String, Entry> read) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            // Trust the index rather than delete anything.
+            return false;
+        }
+
+        final Map<String, File> unknown = new HashMap<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (file.isFile() && !name.equals(INDEX_FILE) && !name.endsWith(PART_SUFFIX)
+                    && !name.endsWith(SPARSE_SUFFIX) && !name.endsWith(RANGES_SUFFIX)) {
+                unknown.put(name, file);
+            }
+        }
+
+        boolean changed = false;
+        for (Iterator<Entry> it = read.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            final File file = unknown.remove(entry.name);
+            if (file == null) {
+                it.remove();
+                changed = true;
+            } else if (file.length() != entry.size) {
+                // Count what's there against the budget.
+                entry.size = file.length();
+                changed = true;
+            }
+        }
+        // Including a leftover of a failed write of the index.
+        for (File file : unknown.values()) {
+            file.delete();
+        }
+        return changed;
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the index.
+     *
+     * @return The entries, least recently used first, none if there's no
+     *         index or it can't be read. They're still to be reconciled
+     *         with the files.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private Map<String, Entry> readIndex() {
+        final Map<String, Entry> read = new LinkedHashMap<>();
+        if (!indexFile.exists()) {
+            return read;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != VERSION) {
+                    return read;
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final String url = in.readUTF();
+                    read.put(url, new Entry(url, fileName(url), in.readLong(), in.readBoolean()));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Start over with an empty cache rather than failing. Files of the lost entries are
+            // overwritten if the episodes are downloaded again.
+            read.clear();
+        }
+        return read;
+    }
+
+    /**
+     * A file in the cache.
+     */
+    private static class Entry {
+        final String url;       // The URL of the episode's media file.
+        final String name;      // Name of the file in the cache directory.
+        long         size;      // Size of the file.
+        boolean      completed; // Whether the episode has been played to the end.
+
+        Entry(String url, String name, long size, boolean completed) {
+            this.url       = url;
+            this.name      = name;
+            this.size      = size;
+            this.completed = completed;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package se.kodsnack.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The episodes queued up to be played, in order.
+ *
+ * The queue is kept in a file as an {@link EpisodeSnapshot}, through an
+ * {@link EpisodeCache}, so that it survives the app being restarted. It's
+ * read in the background when the queue is created, and methods that need
+ * it wait for that to finish. It's written in the background whenever it
+ * changes. A {@link Listener} is told the queue once it has been read and
+ * whenever it changes, so that it can be shown without waiting for it.
+ *
+ * All methods are thread safe.
+ */
+public class PlaybackQueue {
+    /**
+     * Is told what's in the queue.
+     */
+    public interface Listener {
+        /**
+         * Called when the queue has been read and whenever it changes, on
+         * the thread that read or changed it and with the queue locked, so
+         * it should only pass the queue on.
+         *
+         * @param queue A copy of the queued episodes, the next one first.
+         */
+        void onQueueChanged(List<Episode> queue);
+    }
+
+    private final EpisodeCache    store;       // Where the queue is kept.
+    private final Listener        listener;    // Is told about changes.
+    private final List<Episode>   episodes;    // The queued episodes, the next one first.
+    private final ExecutorService io;          // Reads and writes the queue.
+    private boolean               loaded;      // Whether the queue has been read.
+    private boolean               savePending; // Whether the queue is about to be written.
+
+    /**
+     * Creates a queue and starts reading the episodes queued the last time
+     * in the background.
+     *
+     * @param file     The file to keep the queue in. It does not need to exist yet.
+     * @param listener Is told what's in the queue.
+     */
+    public PlaybackQueue(File file, Listener listener) {
+        this.store    = new EpisodeCache(file);
+        this.listener = listener;
+        this.episodes = new ArrayList<>();
+        this.io       = Executors.newSingleThreadExecutor();
+
+        io.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the queued episodes, the next one first.
+     */
+    public synchronized List<Episode> getEpisodes() {
+        awaitLoaded();
+        return new ArrayList<>(episodes);
+    }
+
+    public synchronized int size() {
+        awaitLoaded();
+        return episodes.size();
+    }
+
+    /**
+     * Returns whether an episode is queued.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized boolean contains(String url) {
+        return indexOf(url) >= 0;
+    }
+
+    /**
+     * Returns the place of an episode in the queue.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The index of the episode, 0 for the next one, or -1 if it
+     *         isn't queued.
+     */
+    public synchronized int indexOf(String url) {
+        awaitLoaded();
+        for (int i = 0; i < episodes.size(); i++) {
+            if (episodes.get(i).url.equals(url)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the next episode, without removing it from the queue.
+     *
+     * @return The episode, or null if the queue is empty.
+     */
+    public synchronized Episode peek() {
+        awaitLoaded();
+        return episodes.isEmpty() ? null : episodes.get(0);
+    }
+
+    /**
+     * Removes the next episode from the queue.
+     *
+     * @return The episode, or null if the queue is empty.
+     */
+    public synchronized Episode poll() {
+        awaitLoaded();
+        if (episodes.isEmpty()) {
+            return null;
+        }
+        final Episode episode = episodes.remove(0);
+        save();
+        return episode;
+    }
+
+    /**
+     * Adds an episode to the end of the queue, unless it's queued already.
+     *
+     * @param episode The episode.
+     * @return Whether it was added.
+     */
+    public synchronized boolean add(Episode episode) {
+        if (indexOf(episode.url) >= 0) {
+            return false;
+        }
+        episodes.add(episode);
+        save();
+        return true;
+    }
+
+    /**
+     * Replaces the whole queue.
+     *
+     * @param queue The episodes to queue, the next one first.
+     */
+    public synchronized void set(List<Episode> queue) {
+        awaitLoaded();
+        episodes.clear();
+        episodes.addAll(queue);
+        save();
+    }
+
+    /**
+     * Removes an episode from the queue.
+     *
+     * @param url The URL of the episode's media file.
+     * @return Whether it was queued.
+     */
+    public synchronized boolean remove(String url) {
+        final int index = indexOf(url);
+        if (index < 0) {
+            return false;
+        }
+        episodes.remove(index);
+        save();
+        return true;
+    }
+
+    /**
+     * Moves an episode to another place in the queue.
+     *
+     * @param from The index of the episode.
+     * @param to   The index it should have afterwards.
+     * @return Whether it was moved, i.e. whether both indexes are in the
+     *         queue and differ.
+     */
+    public synchronized boolean move(int from, int to) {
+        awaitLoaded();
+        if (from == to || from < 0 || to < 0 || from >= episodes.size()
+                || to >= episodes.size()) {
+            return false;
+        }
+        episodes.add(to, episodes.remove(from));
+        save();
+        return true;
+    }
+
+    /**
+     * Writes any pending changes and stops the background thread. The
+     * queue must not be used afterwards.
+     */
+    public void close() {
+        io.shutdown();
+    }
+
+    private void load() {
+        final List<Episode> saved = store.read();
+        synchronized (this) {
+            if (saved != null) {
+                episodes.addAll(saved);
+            }
+            loaded = true;
+            notifyAll();
+            listener.onQueueChanged(new ArrayList<>(episodes));
+        }
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells the listener about a change, and schedules writing the queue in
+     * the background. Changes made before the write starts are written
+     * together.
+     */
+    private void save() {
+        listener.onQueueChanged(new ArrayList<>(episodes));
+        if (!savePending) {
+            savePending = true;
+            io.execute(write);
+        }
+    }
+
+    private final Runnable write = new Runnable() {
+        public void run() {
+            final List<Episode> queue;
+            synchronized (PlaybackQueue.this) {
+                savePending = false;
+                queue = new ArrayList<>(episodes);
+            }
+
+            try {
+                store.write(queue);
+            } catch (IOException e) {
+                // The old queue is still there, which is the best there is.
+            }
+        }
+    };
+}
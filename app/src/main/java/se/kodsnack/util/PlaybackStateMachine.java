@@ -0,0 +1,133 @@
+package se.kodsnack.util;
+
+/**
+ * The states a player goes through and which commands and events are
+ * allowed in each of them.
+ *
+ * The player calls {@link #fire} before it acts on a command, and only acts
+ * if the command is allowed, so a command that comes at the wrong time (e.g.
+ * a second tap on play while preparing) is dropped instead of putting the
+ * media player in an illegal state.
+ *
+ * Like {@link PollScheduler}, this class is independent of Android. It's not
+ * thread safe; it's meant to be used from the player's thread only.
+ */
+public class PlaybackStateMachine {
+    /**
+     * The states of the player.
+     */
+    public enum State {
+        /** Nothing is prepared. */
+        IDLE,
+        /** Media is being prepared. */
+        PREPARING,
+        /** Media is prepared but hasn't started. */
+        PREPARED,
+        /** Media is playing. */
+        PLAYING,
+        /** Media is paused. */
+        PAUSED,
+        /** Something went wrong, the player has to be stopped (reset) before it can be used. */
+        ERROR
+    }
+
+    /**
+     * Commands to the player and events from it.
+     */
+    public enum Event {
+        /** Start preparing media. */
+        PREPARE,
+        /** The media is prepared. */
+        PREPARED,
+        /** Start or resume playing. */
+        PLAY,
+        /** Pause playing. */
+        PAUSE,
+        /** The media has been played to the end. */
+        COMPLETE,
+        /** Stop and reset the player. */
+        STOP,
+        /** An error occurred. */
+        FAIL
+    }
+
+    /**
+     * Interface for being told about changes of the state.
+     */
+    public interface Listener {
+        /**
+         * Called when the state has changed.
+         *
+         * @param from  The old state.
+         * @param to    The new state.
+         * @param event The command or event that changed it.
+         */
+        public void onStateChanged(State from, State to, Event event);
+    }
+
+    private final Listener listener; // Told about changes of the state.
+    private State          state;    // The current state.
+
+    /**
+     * Creates a state machine in the {@link State#IDLE} state.
+     *
+     * @param listener Told about changes of the state, or null.
+     */
+    public PlaybackStateMachine(Listener listener) {
+        this.listener = listener;
+        this.state    = State.IDLE;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Moves to the state a command or event leads to, if it's allowed in
+     * the current state.
+     *
+     * @param event The command or event.
+     * @return Whether it was allowed. If not, the state is unchanged.
+     */
+    public boolean fire(Event event) {
+        final State next = next(state, event);
+        if (next == null) {
+            return false;
+        }
+
+        final State previous = state;
+        state = next;
+        if (listener != null && next != previous) {
+            listener.onStateChanged(previous, next, event);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the state a command or event leads to.
+     *
+     * @param state The current state.
+     * @param event The command or event.
+     * @return The next state, or null if the event isn't allowed in state.
+     */
+    public static State next(State state, Event event) {
+        switch (event) {
+            case PREPARE:
+                return state == State.IDLE ? State.PREPARING : null;
+            case PREPARED:
+                return state == State.PREPARING ? State.PREPARED : null;
+            case PLAY:
+                return state == State.PREPARED || state == State.PAUSED ? State.PLAYING : null;
+            case PAUSE:
+                return state == State.PLAYING ? State.PAUSED : null;
+            case COMPLETE:
+                return state == State.PLAYING ? State.IDLE : null;
+            case STOP:
+                return state != State.IDLE ? State.IDLE : null;
+            case FAIL:
+                return state != State.IDLE && state != State.ERROR ? State.ERROR : null;
+            default:
+                throw new IllegalArgumentException("Unknown event " + event);
+        }
+    }
+}
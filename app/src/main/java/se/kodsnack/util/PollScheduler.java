@@ -0,0 +1,158 @@
+package se.kodsnack.util;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before polling the live status again.
+ *
+ * Polls often while someone is looking at the status and a show is live or
+ * likely to start (it was live a little while ago, it's about the same time
+ * of the week as the last show or the listener count just changed). When no
+ * show is on, polls are rare, and failing polls back off exponentially. All
+ * delays are jittered so that clients don't end up polling in lockstep.
+ *
+ * This class only does the arithmetic; all times are passed in as wall clock
+ * milliseconds, which keeps it independent of Android.
+ */
+public class PollScheduler {
+    /** Delay while someone is watching and a show is live or likely (ms). */
+    static final long FAST = 3000;
+
+    /** Delay while someone is watching but no show is on (ms). */
+    static final long NORMAL = 15 * 1000;
+
+    /** Delay while nobody is watching but a show is playing, for its title (ms). */
+    static final long BACKGROUND = 60 * 1000;
+
+    /** Delay while nobody is watching and no show is on (ms). */
+    static final long IDLE = 5 * 60 * 1000;
+
+    /** Longest delay after repeated errors (ms). */
+    static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    /** How long a show is considered likely after the last one was seen (ms). */
+    static final long RECENTLY_LIVE = 30 * 60 * 1000;
+
+    /** How long polls are kept fast after the listener count changed (ms). */
+    static final long RECENTLY_CHANGED = 2 * 60 * 1000;
+
+    /** Window around the weekly time of the last show in which a show is likely (ms). */
+    static final long WEEKLY_SLOT = 60 * 60 * 1000;
+
+    private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+
+    /** Relative amount of jitter applied to the delays. */
+    private static final double JITTER = 0.2;
+
+    private final Random random;        // Source of the jitter.
+    private boolean      foreground;    // Whether anyone is looking at the status.
+    private boolean      live;          // Whether a show was live at the last poll.
+    private int          listeners;     // Listener count at the last poll, -1 if unknown.
+    private long         lastLiveAt;    // When a show was last seen live, 0 if never.
+    private long         lastChangeAt;  // When the listener count last changed.
+    private int          failures;      // Number of polls failed in a row.
+
+    public PollScheduler() {
+        this(new Random());
+    }
+
+    PollScheduler(Random random) {
+        this.random    = random;
+        this.listeners = -1;
+    }
+
+    /**
+     * Sets whether anyone is looking at the status.
+     */
+    public void setForeground(boolean foreground) {
+        this.foreground = foreground;
+    }
+
+    /**
+     * Sets when a show was last seen live, e.g. when restoring it from
+     * storage.
+     */
+    public void setLastLiveAt(long lastLiveAt) {
+        this.lastLiveAt = lastLiveAt;
+    }
+
+    /**
+     * Returns when a show was last seen live, 0 if never.
+     */
+    public long getLastLiveAt() {
+        return lastLiveAt;
+    }
+
+    /**
+     * Records a successful poll.
+     *
+     * @param live      Whether a show is live.
+     * @param listeners The number of listeners, or -1 if unknown.
+     * @param now       The current time.
+     */
+    public void onSuccess(boolean live, int listeners, long now) {
+        if (live != this.live || listeners != this.listeners) {
+            lastChangeAt = now;
+        }
+        if (live) {
+            lastLiveAt = now;
+        }
+        this.live      = live;
+        this.listeners = listeners;
+        this.failures  = 0;
+    }
+
+    /**
+     * Records a failed poll.
+     */
+    public void onError() {
+        failures++;
+    }
+
+    /**
+     * Returns how long to wait before the next poll.
+     *
+     * @param now The current time.
+     * @return The delay in milliseconds.
+     */
+    public long nextDelay(long now) {
+        long delay = baseDelay(now);
+        if (failures > 0) {
+            // Double the delay for every failure in a row, starting from the normal delay.
+            final int doublings = Math.min(failures - 1, 16);
+            delay = Math.min(MAX_BACKOFF, Math.max(delay, NORMAL) << doublings);
+        }
+        return jitter(delay);
+    }
+
+    private long baseDelay(long now) {
+        if (!foreground) {
+            return live ? BACKGROUND : IDLE;
+        }
+        return live || isShowLikely(now) ? FAST : NORMAL;
+    }
+
+    /**
+     * Guesses whether a show is about to start.
+     */
+    boolean isShowLikely(long now) {
+        if (now - lastChangeAt < RECENTLY_CHANGED) {
+            return true;
+        }
+        if (lastLiveAt == 0) {
+            return false;
+        }
+        final long sinceLive = now - lastLiveAt;
+        if (sinceLive < RECENTLY_LIVE) {
+            return true;
+        }
+        // Shows tend to be recorded at the same time every week.
+        final long sinceSlot = sinceLive % WEEK;
+        return sinceSlot < WEEKLY_SLOT || WEEK - sinceSlot < WEEKLY_SLOT;
+    }
+
+    private long jitter(long delay) {
+        final double factor = 1 + JITTER * (2 * random.nextDouble() - 1);
+        return (long) (delay * factor);
+    }
+}
@@ -0,0 +1,283 @@
+package se.kodsnack.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where in each episode the listener was, so that playing it
+ * again resumes from there.
+ *
+ * Positions are updated in memory and written in batches, on a background
+ * thread, by appending them to a journal file. Reading the journal back
+ * replays it, so the last record of an episode wins. When the journal has
+ * grown to several times the number of episodes it's compacted, by writing
+ * only the current positions to a new file that replaces it.
+ *
+ * A crash while appending can leave a partial record at the end of the
+ * journal, which is dropped when the journal is read. The journal is read
+ * in the background too; methods that need it wait for that to finish.
+ */
+public class PositionJournal {
+    /** Version of the journal format, bumped whenever the format changes. */
+    private static final int VERSION = 1;
+
+    /** The journal is compacted when it has this many records per episode... */
+    private static final int COMPACT_FACTOR = 4;
+    /** ...and at least this many records. */
+    private static final int COMPACT_MIN = 64;
+
+    /** The longest to wait for the last write when closing (ms). */
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    /** Position of an episode that has no position, e.g. after playing it to the end. */
+    private static final long NONE = -1;
+
+    private final File              file;      // The journal.
+    private final Map<String, Long> positions; // Positions in ms by URL.
+    private final Map<String, Long> pending;   // Positions not yet written to the journal.
+    private final ExecutorService   io;        // Reads and writes the journal.
+    private boolean                 loaded;    // Whether the journal has been read.
+    private boolean                 flushing;  // Whether a write is about to start.
+    private int                     records;   // Records in the journal, -1 to rewrite it.
+
+    /**
+     * Creates a journal and starts reading it in the background. The file
+     * does not need to exist yet.
+     *
+     * @param file The file to keep the journal in.
+     */
+    public PositionJournal(File file) {
+        this.file      = file;
+        this.positions = new HashMap<>();
+        this.pending   = new LinkedHashMap<>();
+        this.io        = Executors.newSingleThreadExecutor();
+
+        io.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns where the listener was in an episode.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The position in ms, or 0 to start from the beginning.
+     */
+    public synchronized int getPosition(String url) {
+        awaitLoaded();
+        final Long position = positions.get(url);
+        return position != null && position > 0 ? position.intValue() : 0;
+    }
+
+    /**
+     * Records where the listener is in an episode. The position is only
+     * written by {@link #flush()}.
+     *
+     * @param url      The URL of the episode's media file.
+     * @param position The position in ms.
+     */
+    public synchronized void setPosition(String url, long position) {
+        positions.put(url, position);
+        pending.put(url, position);
+    }
+
+    /**
+     * Forgets the position in an episode, so that it's played from the
+     * beginning next time. The change is only written by {@link #flush()}.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public synchronized void clearPosition(String url) {
+        // Before the journal has been read, the episode may be in it.
+        if (positions.remove(url) != null || pending.containsKey(url) || !loaded) {
+            pending.put(url, NONE);
+        }
+    }
+
+    /**
+     * Writes the changed positions to the journal in the background.
+     * Changes made before the write starts are written together.
+     */
+    public synchronized void flush() {
+        if (!flushing && !pending.isEmpty()) {
+            flushing = true;
+            io.execute(write);
+        }
+    }
+
+    /**
+     * Writes the changed positions and stops the background thread, waiting
+     * a moment for the write to finish. The journal must not be used
+     * afterwards.
+     */
+    public void close() {
+        flush();
+        io.shutdown();
+        try {
+            io.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // The write goes on in the background.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable write = new Runnable() {
+        public void run() {
+            final byte[] data;
+            final boolean compact;
+            synchronized (PositionJournal.this) {
+                flushing = false;
+                compact = records < 0 || records + pending.size()
+                        > Math.max(COMPACT_MIN, COMPACT_FACTOR * positions.size());
+                if (compact) {
+                    data = encode(positions, true);
+                    records = positions.size();
+                } else {
+                    // Only the write thread changes the file, so its length is settled here.
+                    data = encode(pending, file.length() == 0);
+                    records += pending.size();
+                }
+                pending.clear();
+            }
+
+            try {
+                if (compact) {
+                    replace(data);
+                } else {
+                    append(data);
+                }
+            } catch (IOException e) {
+                // Start over with the positions in memory, which are all there is to save.
+                file.delete();
+                synchronized (PositionJournal.this) {
+                    records = 0;
+                    pending.putAll(positions);
+                }
+            }
+        }
+    };
+
+    /**
+     * Encodes records, with the version first if they start the journal.
+     */
+    private static byte[] encode(Map<String, Long> records, boolean first) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * records.size() + 4);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (first) {
+                out.writeInt(VERSION);
+            }
+            for (Map.Entry<String, Long> record : records.entrySet()) {
+                out.writeUTF(record.getKey());
+                out.writeLong(record.getValue());
+            }
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void append(byte[] data) throws IOException {
+        // No sync: what's written survives the app being killed, which is what matters here.
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void replace(byte[] data) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void load() {
+        final Map<String, Long> read = new HashMap<>();
+        int count = 0;
+        boolean clean = !file.exists();
+        if (!clean) {
+            try {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() == VERSION) {
+                        while (true) {
+                            final String url;
+                            try {
+                                url = in.readUTF();
+                            } catch (EOFException e) {
+                                // The end, between two records.
+                                clean = true;
+                                break;
+                            }
+                            read.put(url, in.readLong());
+                            count++;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // A partial record at the end, from a crash while appending. Everything before it
+                // is fine, but appending after it would make the rest unreadable.
+            }
+        }
+
+        synchronized (this) {
+            // Positions set before the journal was read are newer.
+            for (Map.Entry<String, Long> record : read.entrySet()) {
+                if (!pending.containsKey(record.getKey()) && record.getValue() != NONE) {
+                    positions.put(record.getKey(), record.getValue());
+                }
+            }
+            records = clean ? count : -1;
+            loaded = true;
+            notifyAll();
+        }
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
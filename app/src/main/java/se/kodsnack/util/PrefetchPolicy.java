@@ -0,0 +1,107 @@
+package se.kodsnack.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which episodes to prefetch the beginning of, so that they start
+ * playing right away when tapped, and keeps the prefetching within a daily
+ * data budget.
+ *
+ * The likely next episodes are the newest one that hasn't been played and
+ * the one after the episode that's playing. Every prefetch is charged the
+ * full prefix up front, so the budget is never exceeded even if parts of
+ * the prefixes were already there.
+ *
+ * Like {@link PollScheduler}, this class only does the bookkeeping; times
+ * are passed in as wall clock milliseconds.
+ */
+public class PrefetchPolicy {
+    /** How much of an episode to prefetch: 30 seconds at 128 kbit/s (bytes). */
+    public static final long PREFIX_BYTES = 30 * 128000 / 8;
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private final long        budget;     // Bytes that may be prefetched per day.
+    private final Set<String> prefetched; // Episodes prefetched since started.
+    private long              day;        // The day the used bytes are counted for.
+    private long              used;       // Bytes charged today.
+
+    /**
+     * Creates a policy.
+     *
+     * @param budget The number of bytes that may be prefetched per day.
+     */
+    public PrefetchPolicy(long budget) {
+        this.budget     = budget;
+        this.prefetched = new HashSet<>();
+    }
+
+    /**
+     * Restores how much has been used, e.g. from storage.
+     *
+     * @param day  The day the bytes were used, as returned by {@link #getDay()}.
+     * @param used The number of bytes used that day.
+     */
+    public void restore(long day, long used) {
+        this.day  = day;
+        this.used = used;
+    }
+
+    public long getDay() {
+        return day;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * Chooses the episodes to prefetch now and charges them to the budget.
+     *
+     * @param episodes All episodes, newest first.
+     * @param current  URL of the episode that's playing, or null.
+     * @param played   URLs of the episodes that have been played.
+     * @param cache    The cache, episodes in it don't need prefetching.
+     * @param now      The current time.
+     * @return The URLs of the episodes to prefetch {@link #PREFIX_BYTES} of.
+     */
+    public List<String> choose(List<Episode> episodes, String current, Set<String> played,
+                               MediaCache cache, long now) {
+        if (now / DAY != day) {
+            day  = now / DAY;
+            used = 0;
+        }
+
+        final List<String> candidates = new ArrayList<>(2);
+        for (Episode episode : episodes) {
+            if (!played.contains(episode.url) && !episode.url.equals(current)) {
+                candidates.add(episode.url);
+                break;
+            }
+        }
+        // The list is newest first, so the next episode is the one before.
+        for (int i = 1; i < episodes.size(); i++) {
+            if (episodes.get(i).url.equals(current)) {
+                candidates.add(episodes.get(i - 1).url);
+                break;
+            }
+        }
+
+        final List<String> chosen = new ArrayList<>(candidates.size());
+        for (String url : candidates) {
+            if (prefetched.contains(url) || cache.contains(url)) {
+                continue;
+            }
+            if (used + PREFIX_BYTES > budget) {
+                break;
+            }
+            used += PREFIX_BYTES;
+            prefetched.add(url);
+            chosen.add(url);
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,127 @@
+package se.kodsnack.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Set of byte ranges, kept as sorted, non-overlapping and non-adjacent
+ * [start, end) intervals. Used to track which parts of a file have been
+ * downloaded.
+ */
+final class RangeSet {
+    private long[] starts = new long[4]; // Start of each range, inclusive.
+    private long[] ends   = new long[4]; // End of each range, exclusive.
+    private int    count;                // Number of ranges.
+
+    /**
+     * Adds a range, merging it with the ranges it overlaps or touches.
+     *
+     * @param start Start of the range, inclusive.
+     * @param end   End of the range, exclusive.
+     */
+    void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+
+        // The first range that ends at or after start and the first that starts after end.
+        int first = 0;
+        while (first < count && ends[first] < start) {
+            first++;
+        }
+        int last = first;
+        while (last < count && starts[last] <= end) {
+            last++;
+        }
+
+        if (first < last) {
+            // Merge ranges first..last-1 with the new one into first.
+            starts[first] = Math.min(start, starts[first]);
+            ends[first]   = Math.max(end, ends[last - 1]);
+            System.arraycopy(starts, last, starts, first + 1, count - last);
+            System.arraycopy(ends, last, ends, first + 1, count - last);
+            count -= last - first - 1;
+        } else {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends   = Arrays.copyOf(ends, count * 2);
+            }
+            System.arraycopy(starts, first, starts, first + 1, count - first);
+            System.arraycopy(ends, first, ends, first + 1, count - first);
+            starts[first] = start;
+            ends[first]   = end;
+            count++;
+        }
+    }
+
+    /**
+     * Returns how many bytes from a position on are in the set.
+     *
+     * @param pos The position.
+     * @return The number of bytes, 0 if pos isn't in the set.
+     */
+    long available(long pos) {
+        for (int i = 0; i < count && starts[i] <= pos; i++) {
+            if (pos < ends[i]) {
+                return ends[i] - pos;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the start of the first range after a position.
+     *
+     * @param pos The position.
+     * @return The start, or Long.MAX_VALUE if there is no range after pos.
+     */
+    long nextStart(long pos) {
+        for (int i = 0; i < count; i++) {
+            if (starts[i] > pos) {
+                return starts[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns whether [0, length) is in the set.
+     */
+    boolean covers(long length) {
+        return length == 0 || (count == 1 && starts[0] == 0 && ends[0] >= length);
+    }
+
+    /**
+     * Removes all ranges.
+     */
+    void clear() {
+        count = 0;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(starts[i]);
+            out.writeLong(ends[i]);
+        }
+    }
+
+    void read(DataInput in) throws IOException {
+        clear();
+        final int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            add(in.readLong(), in.readLong());
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            sb.append(i > 0 ? ", " : "").append(starts[i]).append('-').append(ends[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,271 @@
+package se.kodsnack.util;
+
+import java.text.ParseException;
+
+/**
+ * Parser for RFC 822 (and RFC 2822) dates such as the ones in the pubDate
+ * tags of Kodsnack's feed, e.g. "Fri, 12 Dec 2014 09:05:51 +0100".
+ *
+ * Unlike {@link java.text.SimpleDateFormat} it works directly on the
+ * characters handed out by the XML parser, allocates nothing, is thread safe
+ * and does not depend on the default locale (the month and day names in the
+ * feed are always English).
+ */
+public final class Rfc822Date {
+    private static final int MILLIS_PER_MINUTE = 60 * 1000;
+    private static final int MILLIS_PER_DAY    = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private Rfc822Date() { }
+
+    /**
+     * Parses a date.
+     *
+     * @param s The date.
+     * @return The date in milliseconds since the epoch.
+     */
+    public static long parse(String s) throws ParseException {
+        return parse(s.toCharArray(), 0, s.length());
+    }
+
+    /**
+     * Parses a date from a range of characters.
+     *
+     * @param ch     The characters holding the date.
+     * @param start  Index of the first character of the date.
+     * @param length The number of characters in the date.
+     * @return The date in milliseconds since the epoch.
+     */
+    public static long parse(char[] ch, int start, int length) throws ParseException {
+        final int end = start + length;
+        int i = skipSpace(ch, start, end);
+
+        // Optional day of week, e.g. "Fri,".
+        if (i < end && isLetter(ch[i])) {
+            while (i < end && isLetter(ch[i])) {
+                i++;
+            }
+            if (i < end && ch[i] == ',') {
+                i++;
+            }
+            i = skipSpace(ch, i, end);
+        }
+
+        // Day of month.
+        int day = 0;
+        int digits = 0;
+        while (i < end && isDigit(ch[i]) && digits < 2) {
+            day = day * 10 + (ch[i++] - '0');
+            digits++;
+        }
+        if (digits == 0 || day < 1 || day > 31) {
+            throw error(ch, start, length, i);
+        }
+        i = skipSpace(ch, i, end);
+
+        // Month name.
+        if (end - i < 3) {
+            throw error(ch, start, length, i);
+        }
+        final int month = month(ch[i], ch[i + 1], ch[i + 2]);
+        if (month < 0) {
+            throw error(ch, start, length, i);
+        }
+        i = skipSpace(ch, i + 3, end);
+
+        // Year, either four or (obsolete) two digits.
+        int year = 0;
+        digits = 0;
+        while (i < end && isDigit(ch[i])) {
+            year = year * 10 + (ch[i++] - '0');
+            digits++;
+        }
+        if (digits == 2) {
+            year += year < 50 ? 2000 : 1900;
+        } else if (digits != 4) {
+            throw error(ch, start, length, i);
+        }
+        i = skipSpace(ch, i, end);
+
+        // Time of day, seconds are optional.
+        if (end - i < 5 || ch[i + 2] != ':') {
+            throw error(ch, start, length, i);
+        }
+        final int hour   = twoDigits(ch, i);
+        final int minute = twoDigits(ch, i + 3);
+        int second = 0;
+        i += 5;
+        if (i < end && ch[i] == ':') {
+            if (end - i < 3) {
+                throw error(ch, start, length, i);
+            }
+            second = twoDigits(ch, i + 1);
+            i += 3;
+        }
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            throw error(ch, start, length, i);
+        }
+        i = skipSpace(ch, i, end);
+
+        // Time zone, missing zones are taken to be UTC.
+        final int offset = zoneOffset(ch, i, end);
+        if (offset == Integer.MIN_VALUE) {
+            throw error(ch, start, length, i);
+        }
+
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L
+                - offset * (long) MILLIS_PER_MINUTE;
+    }
+
+    /**
+     * Returns the zone offset in minutes east of UTC, or Integer.MIN_VALUE
+     * if the zone isn't recognized.
+     */
+    private static int zoneOffset(char[] ch, int i, int end) {
+        if (i >= end) {
+            return 0;
+        }
+
+        final char c = ch[i];
+        if (c == '+' || c == '-') {
+            if (end - i < 5) {
+                return Integer.MIN_VALUE;
+            }
+            final int hours   = twoDigits(ch, i + 1);
+            final int minutes = twoDigits(ch, i + 3);
+            if (hours < 0 || minutes < 0) {
+                return Integer.MIN_VALUE;
+            }
+            final int offset = hours * 60 + minutes;
+            return c == '-' ? -offset : offset;
+        }
+
+        int n = 0;
+        while (i + n < end && isLetter(ch[i + n])) {
+            n++;
+        }
+        if (n == 1) {
+            // Military zones are too ambiguous to trust, RFC 2822 says to treat them as UTC.
+            return 0;
+        } else if (n == 2) {
+            return upper(ch[i]) == 'U' && upper(ch[i + 1]) == 'T' ? 0 : Integer.MIN_VALUE;
+        } else if (n != 3) {
+            return Integer.MIN_VALUE;
+        }
+
+        final char a = upper(ch[i]);
+        final char b = upper(ch[i + 1]);
+        final char t = upper(ch[i + 2]);
+        if (a == 'G' && b == 'M' && t == 'T') {
+            return 0;
+        } else if (t != 'T' || (b != 'S' && b != 'D')) {
+            return Integer.MIN_VALUE;
+        }
+
+        // North American zones, daylight saving time is one hour ahead of standard time.
+        final int dst = b == 'D' ? 60 : 0;
+        switch (a) {
+            case 'E':
+                return -5 * 60 + dst;
+            case 'C':
+                return -6 * 60 + dst;
+            case 'M':
+                return -7 * 60 + dst;
+            case 'P':
+                return -8 * 60 + dst;
+            default:
+                return Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns the month (1-12) from the first three letters of its English
+     * name, or -1 if it isn't a month.
+     */
+    private static int month(char a, char b, char c) {
+        a = upper(a);
+        b = upper(b);
+        c = upper(c);
+        switch (a) {
+            case 'J':
+                if (b == 'A' && c == 'N') return 1;
+                if (b == 'U' && c == 'N') return 6;
+                if (b == 'U' && c == 'L') return 7;
+                break;
+            case 'F':
+                if (b == 'E' && c == 'B') return 2;
+                break;
+            case 'M':
+                if (b == 'A' && c == 'R') return 3;
+                if (b == 'A' && c == 'Y') return 5;
+                break;
+            case 'A':
+                if (b == 'P' && c == 'R') return 4;
+                if (b == 'U' && c == 'G') return 8;
+                break;
+            case 'S':
+                if (b == 'E' && c == 'P') return 9;
+                break;
+            case 'O':
+                if (b == 'C' && c == 'T') return 10;
+                break;
+            case 'N':
+                if (b == 'O' && c == 'V') return 11;
+                break;
+            case 'D':
+                if (b == 'E' && c == 'C') return 12;
+                break;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of days between 1970-01-01 and a date in the
+     * proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        // Count years from March so that the leap day ends up last in the year.
+        year -= month <= 2 ? 1 : 0;
+        final long era       = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra  = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Returns the value of two digits, or -1 if they aren't digits.
+     */
+    private static int twoDigits(char[] ch, int i) {
+        final char a = ch[i];
+        final char b = ch[i + 1];
+        if (!isDigit(a) || !isDigit(b)) {
+            return -1;
+        }
+        return (a - '0') * 10 + (b - '0');
+    }
+
+    private static int skipSpace(char[] ch, int i, int end) {
+        while (i < end && (ch[i] == ' ' || ch[i] == '\t' || ch[i] == '\r' || ch[i] == '\n')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char upper(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    private static ParseException error(char[] ch, int start, int length, int at) {
+        return new ParseException("Unparseable date: \"" + new String(ch, start, length) + "\"",
+                                  at - start);
+    }
+}
@@ -0,0 +1,278 @@
+package se.kodsnack.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A file that is downloaded in pieces, in whatever order they're needed.
+ *
+ * The pieces are written where they belong in the file, leaving holes for
+ * what hasn't been downloaded yet, and a {@link RangeSet} keeps track of
+ * what's there. The ranges and the length of the file are saved next to it
+ * so that a partly downloaded file can be picked up again later.
+ *
+ * Reads and writes may come from several threads. So that two of them
+ * don't download the same hole, a thread {@link #reserve reserves} the
+ * range it's about to download, and the others wait for it.
+ */
+final class SparseFile {
+    /** Version of the ranges file, bumped whenever the format changes. */
+    private static final int VERSION = 1;
+
+    private final File             file;       // The file.
+    private final File             rangesFile; // Where the ranges are saved, or null.
+    private final RandomAccessFile raf;        // The open file.
+    private final FileChannel      channel;    // Channel of raf, for positioned I/O.
+    private final RangeSet         ranges;     // What is in the file.
+    private final Map<Object, long[]> reserved; // Ranges being downloaded, by downloader.
+    private long                   length;     // Length of the whole file, -1 if unknown.
+    private boolean                dirty;      // Whether the ranges have changed since saved.
+
+    /**
+     * Opens a partly downloaded file, or creates it.
+     *
+     * @param file       The file.
+     * @param rangesFile Where to keep the ranges of the file.
+     */
+    SparseFile(File file, File rangesFile) throws IOException {
+        this.file       = file;
+        this.rangesFile = rangesFile;
+        this.ranges     = new RangeSet();
+        this.reserved   = new HashMap<>();
+        this.length     = -1;
+        if (file.exists()) {
+            readRanges();
+        }
+        this.raf     = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+    }
+
+    /**
+     * Opens a complete file for reading.
+     *
+     * @param file The file.
+     */
+    SparseFile(File file) throws IOException {
+        this.file       = file;
+        this.rangesFile = null;
+        this.ranges     = new RangeSet();
+        this.reserved   = new HashMap<>();
+        this.raf        = new RandomAccessFile(file, "r");
+        this.channel    = raf.getChannel();
+        this.length     = raf.length();
+        ranges.add(0, length);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the whole file, or -1 if it's not known yet.
+     */
+    synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the length of the whole file, as reported by the server.
+     */
+    synchronized void setLength(long length) {
+        if (this.length != length) {
+            this.length = length;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns how many bytes from a position on are in the file.
+     */
+    synchronized long available(long pos) {
+        return ranges.available(pos);
+    }
+
+    /**
+     * Returns how many bytes from a position on are missing, i.e. the size
+     * of the hole at pos, up to the end of the file if its length is known.
+     */
+    synchronized long missing(long pos) {
+        if (ranges.available(pos) > 0) {
+            return 0;
+        }
+        final long end = Math.min(ranges.nextStart(pos),
+                                  length >= 0 ? length : Long.MAX_VALUE);
+        return end - pos;
+    }
+
+    /**
+     * Returns whether the whole file has been downloaded.
+     */
+    synchronized boolean isComplete() {
+        return length >= 0 && ranges.covers(length);
+    }
+
+    /**
+     * Reads bytes that are in the file.
+     *
+     * @return The number of bytes read, less than len only at the end of what's there.
+     */
+    int read(long pos, byte[] buffer, int offset, int len) throws IOException {
+        final int n = (int) Math.min(len, available(pos));
+        final ByteBuffer bb = ByteBuffer.wrap(buffer, offset, n);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, pos + bb.position() - offset) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Writes downloaded bytes to where they belong in the file.
+     */
+    void write(long pos, byte[] buffer, int offset, int len) throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(buffer, offset, len);
+        while (bb.hasRemaining()) {
+            channel.write(bb, pos + bb.position() - offset);
+        }
+        synchronized (this) {
+            // Only mark the bytes as there once they are.
+            ranges.add(pos, pos + len);
+            dirty = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reserves the hole at a position for a downloader, up to where another
+     * downloader's range starts. A downloader has one range at a time, which
+     * replaces any it had before.
+     *
+     * @param owner The downloader.
+     * @param start The position of the hole.
+     * @param end   The end of what the downloader wants.
+     * @return The end of the reserved range, or start if another downloader
+     *         has reserved start already. Then {@link #await} it.
+     */
+    synchronized long reserve(Object owner, long start, long end) {
+        reserved.remove(owner);
+        for (long[] range : reserved.values()) {
+            if (range[0] <= start && start < range[1]) {
+                return start;
+            } else if (start < range[0]) {
+                end = Math.min(end, range[0]);
+            }
+        }
+        reserved.put(owner, new long[] { start, end });
+        return end;
+    }
+
+    /**
+     * Gives up the range reserved by a downloader, if any.
+     */
+    synchronized void unreserve(Object owner) {
+        if (reserved.remove(owner) != null) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the byte at a position is in the file or no longer
+     * reserved, or until a timeout.
+     *
+     * @param pos     The position.
+     * @param timeout The longest time to wait (ms).
+     */
+    synchronized void await(long pos, long timeout) throws InterruptedIOException {
+        final long end = System.currentTimeMillis() + timeout;
+        for (long now = System.currentTimeMillis(); now < end && ranges.available(pos) == 0
+                && isReserved(pos); now = System.currentTimeMillis()) {
+            try {
+                wait(end - now);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private boolean isReserved(long pos) {
+        for (long[] range : reserved.values()) {
+            if (range[0] <= pos && pos < range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves the ranges, if they have changed. The data is synced first so
+     * that the saved ranges never claim more than what's in the file.
+     */
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    synchronized void save() throws IOException {
+        if (!dirty || rangesFile == null) {
+            return;
+        }
+        channel.force(false);
+
+        final File tmp = new File(rangesFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            ranges.write(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(rangesFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + rangesFile);
+        }
+        dirty = false;
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Deletes the file and its ranges.
+     */
+    void delete() {
+        file.delete();
+        if (rangesFile != null) {
+            rangesFile.delete();
+        }
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void readRanges() {
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(rangesFile)));
+            try {
+                if (in.readInt() == VERSION) {
+                    length = in.readLong();
+                    ranges.read(in);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Without the ranges nothing in the file can be trusted, it will be overwritten.
+            length = -1;
+            ranges.clear();
+        }
+    }
+}
@@ -0,0 +1,744 @@
+package se.kodsnack.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP proxy on the loopback interface that caches episodes while they're
+ * streamed.
+ *
+ * The media player is given a {@link #getUrl proxy URL} instead of the
+ * episode's URL. Every byte the proxy fetches from the server is written to
+ * a {@link SparseFile} in the {@link MediaCache} on its way to the player,
+ * and later reads, e.g. when seeking back, are served from the file. Only
+ * the ranges that are missing are fetched from the server, so every byte of
+ * an episode is downloaded at most once, and when the whole episode has
+ * been streamed it's moved into the cache like a download.
+ *
+ * The proxy only understands what the media player sends: GET requests for
+ * a single, open-ended or closed, byte range.
+ *
+ * The live stream is passed through a {@link LiveRelay} instead, through a
+ * {@link #getLiveUrl live proxy URL}, so that it survives short drops of
+ * the connection and can be paused and rewound. Players of the same stream
+ * share a relay. The player's connections are socket channels, so that the
+ * relay can send its file to them without copying.
+ */
+public class StreamProxy implements Runnable {
+    /** Connect and read timeout for the server (ms). */
+    private static final int TIMEOUT = 15000;
+
+    /** Number of partly streamed episodes kept between runs. */
+    private static final int MAX_SPARSE_FILES = 4;
+
+    /** How long a live relay is kept after its last player is gone, e.g. to rewind (ms). */
+    private static final long RELAY_LINGER = 10000;
+
+    /** The longest to wait for a hole another transfer is fetching, before checking again (ms). */
+    private static final long RESERVED_WAIT = 1000;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final MediaCache             cache;     // Where the episodes are cached.
+    private final File                   liveDir;   // Where the live relays keep the streams.
+    private final ExecutorService        executor;  // Serves the connections.
+    private final Map<String, OpenFile>  files;     // Sparse files in use, by URL.
+    private final Map<String, OpenRelay> relays;    // Live relays in use, by URL.
+    private final Set<Transfer>          transfers; // Running connections and prefetches.
+    private ServerSocketChannel          server;    // The socket the player connects to.
+
+    /**
+     * Creates a proxy caching to a media cache.
+     *
+     * @param cache   The cache.
+     * @param liveDir The directory for the live relays' files. It does not
+     *                need to exist yet.
+     */
+    public StreamProxy(MediaCache cache, File liveDir) {
+        this.cache       = cache;
+        this.liveDir     = liveDir;
+        this.executor    = Executors.newCachedThreadPool();
+        this.files       = new HashMap<>();
+        this.relays      = new HashMap<>();
+        this.transfers   = new HashSet<>();
+    }
+
+    /**
+     * Starts listening on a free port on the loopback interface.
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 8);
+        executor.execute(new Runnable() {
+            public void run() {
+                trimSparseFiles();
+            }
+        });
+        // Live streams are only kept while they're played, so anything there is left over.
+        final File[] leftovers = liveDir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+        liveDir.mkdirs();
+        new Thread(this, "StreamProxy").start();
+    }
+
+    /**
+     * Stops the proxy and closes all connections.
+     */
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        // Closing the sockets unblocks the connections, interrupting them doesn't.
+        synchronized (transfers) {
+            for (Transfer transfer : transfers) {
+                transfer.close();
+            }
+        }
+        synchronized (this) {
+            for (OpenRelay open : relays.values()) {
+                open.relay.stop();
+            }
+            relays.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Closes the connections from the media player for an episode, e.g.
+     * after the player has been reset, so that they stop fetching what's no
+     * longer needed right away instead of when the player's socket times
+     * out. Prefetches go on.
+     *
+     * @param url The URL of the episode's media file.
+     */
+    public void closeConnections(String url) {
+        synchronized (transfers) {
+            for (Transfer transfer : transfers) {
+                if (transfer instanceof Connection && url.equals(((Connection) transfer).url)) {
+                    transfer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the URL to give the media player for streaming an episode
+     * through the proxy.
+     *
+     * @param url The URL of the episode's media file.
+     * @return The proxy URL.
+     */
+    public String getUrl(String url) {
+        try {
+            // URLEncoder leaves the dots, so the URL keeps its extension.
+            return "http://127.0.0.1:" + server.socket().getLocalPort() + "/"
+                    + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the URL to give the media player for playing a live stream
+     * through a {@link LiveRelay}.
+     *
+     * @param url    The URL of the live stream.
+     * @param behind How far behind the broadcast to start (ms), as far back
+     *               as the relay goes. Players start a bit behind anyway.
+     * @return The proxy URL.
+     */
+    public String getLiveUrl(String url, long behind) {
+        try {
+            return "http://127.0.0.1:" + server.socket().getLocalPort() + "/live/"
+                    + URLEncoder.encode(url, "UTF-8") + (behind > 0 ? "?behind=" + behind : "");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Tells the relay of a live stream that the player has run out of
+     * data, so that it can reconnect right away if the server has stalled.
+     *
+     * @param url The URL of the live stream.
+     */
+    public void stall(String url) {
+        final OpenRelay open;
+        synchronized (this) {
+            open = relays.get(url);
+        }
+        if (open != null) {
+            open.relay.stall();
+        }
+    }
+
+    /**
+     * Fetches the beginning of an episode in the background, unless it's
+     * already there, so that playing it starts from the file.
+     *
+     * @param url   The URL of the episode's media file.
+     * @param bytes How many bytes from the start to fetch.
+     */
+    public void prefetch(String url, long bytes) {
+        if (!cache.contains(url)) {
+            executor.execute(new Prefetch(url, bytes));
+        }
+    }
+
+    @Override
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                final SocketChannel channel = server.accept();
+                executor.execute(new Connection(channel.socket()));
+            } catch (IOException e) {
+                // The server socket has been closed.
+                break;
+            }
+        }
+    }
+
+    /**
+     * Opens the sparse file of an episode, or returns it if it's already
+     * open. A cached episode is opened as a complete file.
+     */
+    private synchronized OpenFile acquire(String url) throws IOException {
+        OpenFile open = files.get(url);
+        if (open == null) {
+            final File cached = cache.getFile(url);
+            final SparseFile file = cached != null
+                    ? new SparseFile(cached)
+                    : new SparseFile(cache.getSparseFile(url), cache.getRangesFile(url));
+            open = new OpenFile(file, cached != null);
+            files.put(url, open);
+        }
+        open.users++;
+        return open;
+    }
+
+    /**
+     * Releases a sparse file. When its last user is done, it's closed, and
+     * moved into the cache if it's complete. If it isn't, it's kept as the
+     * most recently used sparse file, and the oldest ones are deleted.
+     */
+    private synchronized void release(String url, OpenFile open) {
+        if (--open.users > 0) {
+            return;
+        }
+        files.remove(url);
+
+        try {
+            open.file.save();
+            open.file.close();
+            if (!open.cached && open.file.isComplete()) {
+                cache.put(url, open.file.getFile());
+                cache.getRangesFile(url).delete();
+            } else if (!open.cached) {
+                // The ranges are only written when they change, but this counts as a use.
+                cache.getRangesFile(url).setLastModified(System.currentTimeMillis());
+                trimSparseFiles();
+            }
+        } catch (IOException e) {
+            // What was streamed is lost, it will be fetched again. A file from the cache was
+            // only read, and is the cache's to remove.
+            if (!open.cached) {
+                open.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes all but the {@link #MAX_SPARSE_FILES} most recently used
+     * sparse files, keeping those that are open.
+     */
+    private synchronized void trimSparseFiles() {
+        final Set<File> inUse = new HashSet<>();
+        for (OpenFile open : files.values()) {
+            if (!open.cached) {
+                inUse.add(open.file.getFile());
+            }
+        }
+        cache.trimSparseFiles(MAX_SPARSE_FILES, inUse);
+    }
+
+    /**
+     * Starts the relay of a live stream, or returns it if it's already
+     * running.
+     */
+    private synchronized OpenRelay acquireRelay(String url) throws IOException {
+        OpenRelay open = relays.get(url);
+        if (open == null) {
+            final String name = Integer.toHexString(url.hashCode());
+            open = new OpenRelay(new LiveRelay(url, new File(liveDir, name)));
+            open.relay.start();
+            relays.put(url, open);
+        }
+        open.users++;
+        return open;
+    }
+
+    /**
+     * Releases the relay of a live stream. When its last player is done,
+     * it's stopped, unless a player comes back within
+     * {@link #RELAY_LINGER}; the player reconnects to rewind.
+     */
+    private synchronized void releaseRelay(final String url, final OpenRelay open) {
+        if (--open.users > 0) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(RELAY_LINGER);
+                } catch (InterruptedException e) {
+                    // The proxy is stopping, which stops the relays.
+                    return;
+                }
+                synchronized (StreamProxy.this) {
+                    if (open.users == 0 && relays.get(url) == open) {
+                        relays.remove(url);
+                        open.relay.stop();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A sparse file and the number of connections using it.
+     */
+    private static class OpenFile {
+        final SparseFile file;   // The file.
+        final boolean    cached; // Whether it's a complete file from the cache.
+        int              users;  // Number of connections using the file.
+
+        OpenFile(SparseFile file, boolean cached) {
+            this.file   = file;
+            this.cached = cached;
+        }
+    }
+
+    /**
+     * A live relay and the number of connections using it.
+     */
+    private static class OpenRelay {
+        final LiveRelay relay; // The relay.
+        int             users; // Number of connections using the relay.
+
+        OpenRelay(LiveRelay relay) {
+            this.relay = relay;
+        }
+    }
+
+    /**
+     * Something that fills in a sparse file from the server: a connection
+     * from the player or a prefetch.
+     */
+    private abstract class Transfer implements Runnable {
+        volatile HttpURLConnection origin;       // Connection to the server, or null.
+        volatile SparseFile        reservedIn;   // File with a range reserved for origin, or null.
+        volatile boolean           closed;       // Whether the transfer has been closed.
+        InputStream                originIn;     // Body from the server.
+        boolean                    originRanged; // Whether the server sends the range asked for.
+        long                       originPos;    // Position of the next byte from the server.
+        long                       originEnd;    // Position after the last byte from the server.
+
+        @Override
+        public void run() {
+            synchronized (transfers) {
+                transfers.add(this);
+            }
+            try {
+                transfer();
+            } catch (IOException e) {
+                // The player closes connections it doesn't need anymore, e.g. when seeking, and
+                // what a failed prefetch didn't get is fetched when the episode is played.
+            } finally {
+                synchronized (transfers) {
+                    transfers.remove(this);
+                }
+                close();
+            }
+        }
+
+        abstract void transfer() throws IOException;
+
+        void close() {
+            closed = true;
+            closeOrigin();
+        }
+
+        /**
+         * Sends [start, end) of the file to the player, from the file where
+         * it's there and from the server where it isn't. With no player to
+         * send to, only fills in what's missing.
+         */
+        void copy(String url, SparseFile file, long start, long end, OutputStream out)
+                throws IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long pos = start;
+            while (pos < end) {
+                final int wanted = (int) Math.min(buffer.length, end - pos);
+                final long available = file.available(pos);
+                if (available > 0 && out == null) {
+                    pos += Math.min(available, end - pos);
+                    continue;
+                } else if (available > 0) {
+                    final int n = file.read(pos, buffer, 0, wanted);
+                    out.write(buffer, 0, n);
+                    pos += n;
+                    continue;
+                }
+
+                if (origin == null || originPos >= originEnd
+                        || (originRanged ? originPos != pos : originPos > pos)) {
+                    // Fetch the hole at pos, and nothing that's already in the file or being
+                    // fetched by another transfer.
+                    closeOrigin();
+                    final long hole = reserve(file, pos, Math.min(pos + file.missing(pos), end));
+                    if (hole == pos) {
+                        awaitReserved(file, pos);
+                        continue;
+                    }
+                    openOrigin(url, file, pos, hole);
+                } else if (reservedIn == null) {
+                    // Opened for the length of the file, before anything was reserved.
+                    final long hole = reserve(file, pos, originEnd);
+                    if (hole == pos) {
+                        closeOrigin();
+                        continue;
+                    }
+                    originEnd = hole;
+                }
+
+                final int n = originIn.read(buffer, 0, (int) Math.min(buffer.length,
+                                                                       originEnd - originPos));
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + url);
+                }
+                file.write(originPos, buffer, 0, n);
+                // The server may have started before pos if it ignored the range.
+                final long skip = pos - originPos;
+                if (skip < n) {
+                    if (out != null) {
+                        out.write(buffer, (int) Math.max(0, skip), (int) (n - Math.max(0, skip)));
+                    }
+                    pos = originPos + n;
+                }
+                originPos += n;
+            }
+        }
+
+        /**
+         * Opens a connection to the server for [start, end) of the file, or
+         * from start to the end of the file if end is -1. Updates the
+         * length of the file from the response.
+         */
+        void openOrigin(String url, SparseFile file, long start, long end)
+                throws IOException {
+            final HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+            c.setConnectTimeout(TIMEOUT);
+            c.setReadTimeout(TIMEOUT);
+            c.setRequestProperty("Accept-Encoding", "identity");
+            c.setRequestProperty("Range", "bytes=" + start + "-" + (end > 0 ? end - 1 : ""));
+            origin = c;
+
+            final int code = c.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                final String range = c.getHeaderField("Content-Range");
+                final int slash = range != null ? range.indexOf('/') : -1;
+                if (slash < 0 || !range.startsWith("bytes " + start + "-")) {
+                    throw new IOException("Unexpected range from " + url + ": " + range);
+                }
+                file.setLength(Long.parseLong(range.substring(slash + 1).trim()));
+                originRanged = true;
+                originPos = start;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // The server doesn't do ranges, the whole file it is.
+                final String contentLength = c.getHeaderField("Content-Length");
+                if (contentLength == null) {
+                    throw new IOException("Unknown length of " + url);
+                }
+                file.setLength(Long.parseLong(contentLength.trim()));
+                originRanged = false;
+                originPos = 0;
+            } else {
+                throw new IOException("HTTP " + code + " from " + url);
+            }
+
+            originEnd = end > 0 && code == HttpURLConnection.HTTP_PARTIAL
+                    ? end : file.getLength();
+            originIn = c.getInputStream();
+        }
+
+        void closeOrigin() {
+            final HttpURLConnection c = origin;
+            if (c != null) {
+                origin = null;
+                c.disconnect();
+            }
+            final SparseFile file = reservedIn;
+            if (file != null) {
+                reservedIn = null;
+                file.unreserve(this);
+            }
+        }
+
+        /**
+         * Reserves the hole at start in a file for this transfer, up to end
+         * or where another transfer's range starts.
+         *
+         * @return The end of the range, or start if another transfer is
+         *         fetching start already.
+         */
+        private long reserve(SparseFile file, long start, long end) {
+            final long reserved = file.reserve(this, start, end);
+            if (reserved > start) {
+                reservedIn = file;
+            }
+            return reserved;
+        }
+
+        /**
+         * Waits for another transfer to fetch the byte at a position, or to
+         * give up on it.
+         */
+        private void awaitReserved(SparseFile file, long pos) throws IOException {
+            file.await(pos, RESERVED_WAIT);
+            if (closed) {
+                throw new IOException("Closed");
+            }
+        }
+    }
+
+    /**
+     * A connection from the media player.
+     */
+    private class Connection extends Transfer {
+        final Socket       socket; // Connection from the player.
+        volatile String    url;    // URL of the media, once the request has been read.
+        volatile LiveRelay relay;  // Relay of the live stream being served, or null.
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        void close() {
+            super.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway.
+            }
+            // The relay may be waiting for the server, and only notice when it writes.
+            final LiveRelay relay = this.relay;
+            if (relay != null) {
+                relay.cancel(socket.getChannel());
+            }
+        }
+
+        private void writeStatus(OutputStream out, String status, long length)
+                throws IOException {
+            final String head = "HTTP/1.1 " + status + "\r\n"
+                    + (length >= 0 ? "Content-Range: bytes */" + length + "\r\n" : "")
+                    + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+            out.write(head.getBytes(ISO_8859_1));
+        }
+
+        @Override
+        void transfer() throws IOException {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+
+            // Request line, e.g. "GET /http%3A%2F%2F...mp3 HTTP/1.1".
+            final String[] request = readLine(in).split(" ");
+            if (request.length < 2 || !request[0].equals("GET") || request[1].length() < 2) {
+                writeStatus(out, "400 Bad Request", 0);
+                return;
+            }
+            // Encoded URLs have no slashes or question marks, so "/live/" can't be the start of
+            // one, and what follows a question mark is the query.
+            final boolean live = request[1].startsWith("/live/");
+            final int query = request[1].indexOf('?');
+            final String path = request[1].substring(live ? 6 : 1,
+                                                     query >= 0 ? query : request[1].length());
+            final String url = URLDecoder.decode(path, "UTF-8");
+            this.url = url;
+
+            long start = 0;
+            long end = -1;
+            boolean ranged = false;
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                final String header = line.toLowerCase(Locale.US);
+                if (header.startsWith("range:") && header.contains("bytes=")) {
+                    final String range = header.substring(header.indexOf("bytes=") + 6).trim();
+                    final int dash = range.indexOf('-');
+                    try {
+                        start = Long.parseLong(range.substring(0, dash).trim());
+                        end = dash < range.length() - 1
+                                ? Long.parseLong(range.substring(dash + 1).trim()) + 1 : -1;
+                        ranged = true;
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                        // Suffix ranges aren't used by the player, serve the whole file.
+                        start = 0;
+                        end = -1;
+                    }
+                }
+            }
+
+            if (live) {
+                final String behind = query >= 0 ? request[1].substring(query + 1) : "";
+                relayLive(url, behind.startsWith("behind=")
+                        ? parseLong(behind.substring(7)) : 0, out);
+                return;
+            }
+
+            final OpenFile open = acquire(url);
+            try {
+                final SparseFile file = open.file;
+                if (file.getLength() < 0) {
+                    // The length is needed for the response, ask the server for it.
+                    openOrigin(url, file, start, -1);
+                }
+                final long length = file.getLength();
+                if (length < 0) {
+                    throw new IOException("Unknown length of " + url);
+                }
+                if (end < 0 || end > length) {
+                    end = length;
+                }
+                if (start >= length) {
+                    writeStatus(out, "416 Requested Range Not Satisfiable", length);
+                    return;
+                }
+
+                final StringBuilder head = new StringBuilder();
+                head.append(ranged ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+                head.append("Content-Type: audio/mpeg\r\n");
+                head.append("Accept-Ranges: bytes\r\n");
+                head.append("Content-Length: ").append(end - start).append("\r\n");
+                if (ranged) {
+                    head.append("Content-Range: bytes ").append(start).append('-')
+                        .append(end - 1).append('/').append(length).append("\r\n");
+                }
+                head.append("Connection: close\r\n\r\n");
+                out.write(head.toString().getBytes(ISO_8859_1));
+
+                copy(url, file, start, end, out);
+                out.flush();
+            } finally {
+                release(url, open);
+            }
+        }
+
+        /**
+         * Serves a live stream from its relay. Ranges make no sense for it,
+         * and are ignored.
+         */
+        private void relayLive(String url, long behind, OutputStream out) throws IOException {
+            final OpenRelay open = acquireRelay(url);
+            try {
+                relay = open.relay;
+                final String type = open.relay.getContentType();
+                if (type == null) {
+                    writeStatus(out, "502 Bad Gateway", -1);
+                    return;
+                }
+                final String head = "HTTP/1.1 200 OK\r\nContent-Type: " + type
+                        + "\r\nConnection: close\r\n\r\n";
+                out.write(head.getBytes(ISO_8859_1));
+                open.relay.serve(socket.getChannel(), behind);
+            } catch (InterruptedException e) {
+                // The proxy has been stopped.
+                throw new InterruptedIOException();
+            } finally {
+                relay = null;
+                releaseRelay(url, open);
+            }
+        }
+    }
+
+    /**
+     * Fetches the beginning of an episode, so that playing it can start
+     * right away.
+     */
+    private class Prefetch extends Transfer {
+        final String url;   // The URL of the episode's media file.
+        final long   bytes; // How much of it to fetch.
+
+        Prefetch(String url, long bytes) {
+            this.url   = url;
+            this.bytes = bytes;
+        }
+
+        @Override
+        void transfer() throws IOException {
+            final OpenFile open = acquire(url);
+            try {
+                final SparseFile file = open.file;
+                if (file.getLength() < 0) {
+                    openOrigin(url, file, 0, bytes);
+                }
+                copy(url, file, 0, Math.min(bytes, file.getLength()), null);
+            } finally {
+                release(url, open);
+            }
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a line of an HTTP request head, without the line break.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of request");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Stand-in for Android's android.util.Xml, which lets the feed parser run on
+ * a plain JVM. Android's own pull parser is kXML as well.
+ */
+public class Xml {
+    private Xml() { }
+
+    /**
+     * Returns a new pull parser.
+     */
+    public static XmlPullParser newPullParser() {
+        return new KXmlParser();
+    }
+}
@@ -0,0 +1,218 @@
+package se.kodsnack.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EpisodeDownloaderTest {
+    /** Size of the episode. */
+    private static final int SIZE = 300 * 1000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = content(SIZE);
+
+    private StubServer                  server;      // Serves the episode.
+    private MediaCache                  cache;       // Where the episode is downloaded to.
+    private EpisodeDownloader           downloader;  // The downloader under test.
+    private LinkedBlockingQueue<String> events;      // What the listener was told, in order.
+    private volatile boolean            ranges;      // Whether the server honours Range.
+    private volatile int                dropAfter;   // Bytes after which to drop, 0 for never.
+    private volatile int                stallAfter;  // Bytes after which to stall, 0 for never.
+
+    @Before
+    public void setUp() throws IOException {
+        ranges     = true;
+        dropAfter  = 0;
+        stallAfter = 0;
+        events     = new LinkedBlockingQueue<>();
+        server     = new StubServer(new StubServer.Handler() {
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException, InterruptedException {
+                serve(headers.get("range"), out);
+            }
+        });
+        cache      = new MediaCache(folder.getRoot(), Long.MAX_VALUE);
+        downloader = new EpisodeDownloader(cache, 2, new EpisodeDownloader.Listener() {
+            public void onProgress(String url, long bytes, long total) { }
+
+            public void onFinished(String url, File file) {
+                events.add("finished");
+            }
+
+            public void onFailed(String url, IOException e) {
+                events.add("failed " + e);
+            }
+
+            public void onActiveChanged(boolean active) { }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.shutdown();
+        cache.close();
+        server.close();
+    }
+
+    @Test
+    public void downloadsTheWholeFile() throws Exception {
+        final String url = server.url("/kodsnack1.mp3");
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+        assertNull(server.getRequests().get(0).get("range"));
+    }
+
+    @Test
+    public void resumesALeftoverPartFile() throws Exception {
+        final String url = server.url("/kodsnack1.mp3");
+        write(cache.getPartFile(url), Arrays.copyOf(content, 100000));
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+        assertEquals("bytes=100000-", server.getRequests().get(0).get("range"));
+    }
+
+    @Test
+    public void resumesAfterADrop() throws Exception {
+        dropAfter = 120000;
+        final String url = server.url("/kodsnack1.mp3");
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(20, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+        final List<Map<String, String>> requests = server.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals("bytes=120000-", requests.get(1).get("range"));
+        assertEquals("bytes=240000-", requests.get(2).get("range"));
+    }
+
+    @Test
+    public void startsOverWhenTheServerIgnoresRanges() throws Exception {
+        ranges = false;
+        final String url = server.url("/kodsnack1.mp3");
+        write(cache.getPartFile(url), Arrays.copyOf(content, 100000));
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+    }
+
+    @Test
+    public void completesAPartThatIsAlreadyWhole() throws Exception {
+        final String url = server.url("/kodsnack1.mp3");
+        write(cache.getPartFile(url), content);
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+    }
+
+    @Test
+    public void downloadingAgainWaitsForTheCancelledDownload() throws Exception {
+        stallAfter = 100000;
+        final String url = server.url("/kodsnack1.mp3");
+        downloader.download(url);
+        awaitPart(url, 100000);
+
+        // Both downloads would append to the same .part file if they ran at once.
+        downloader.cancel(url);
+        stallAfter = 0;
+        downloader.download(url);
+
+        assertEquals("finished", events.poll(10, TimeUnit.SECONDS));
+        assertArrayEquals(content, read(cache.getFile(url)));
+        assertEquals("bytes=100000-", server.getRequests().get(1).get("range"));
+    }
+
+    /**
+     * Sends the episode, or the range of it that's asked for.
+     */
+    private void serve(String range, OutputStream out) throws IOException, InterruptedException {
+        int start = 0;
+        if (range != null && ranges) {
+            start = Integer.parseInt(range.substring(6, range.indexOf('-')));
+            if (start >= SIZE) {
+                StubServer.writeHead(out, "416 Range Not Satisfiable",
+                                     "Content-Range: bytes */" + SIZE);
+                return;
+            }
+            StubServer.writeHead(out, "206 Partial Content",
+                                 "Content-Range: bytes " + start + "-" + (SIZE - 1) + "/" + SIZE,
+                                 "Content-Length: " + (SIZE - start));
+        } else {
+            StubServer.writeHead(out, "200 OK", "Content-Length: " + SIZE);
+        }
+
+        final int end = dropAfter > 0 ? Math.min(SIZE, start + dropAfter) : SIZE;
+        final int stall = stallAfter > 0 ? Math.min(SIZE, start + stallAfter) : end;
+        out.write(content, start, Math.min(end, stall) - start);
+        out.flush();
+        if (stall < end) {
+            // Until the client gives up.
+            Thread.sleep(30000);
+        }
+    }
+
+    private void awaitPart(String url, long length) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (cache.getPartFile(url).length() < length && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] content(int size) {
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 7 % 251);
+        }
+        return content;
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static void write(File file, byte[] data) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static byte[] read(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                n += in.read(data, n, data.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,201 @@
+package se.kodsnack.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FeedFetcherTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer      server;        // Serves the feed.
+    private File            validatorFile; // Where the fetchers keep the validators.
+    private volatile int    oldest;        // Number of the oldest episode in the feed.
+    private volatile int    episodes;      // Number of the newest episode in the feed.
+    private volatile String etag;          // ETag of the feed.
+    private volatile String cacheControl;  // Cache-Control of the responses.
+    private volatile int    status;        // Status of the responses, unless 304.
+
+    @Before
+    public void setUp() throws IOException {
+        validatorFile = new File(folder.getRoot(), "validators");
+        oldest        = 1;
+        episodes      = 2;
+        etag          = "\"v2\"";
+        cacheControl  = "no-cache";
+        status        = 200;
+        server = new StubServer(new StubServer.Handler() {
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException {
+                if (etag.equals(headers.get("if-none-match"))) {
+                    StubServer.writeHead(out, "304 Not Modified", "ETag: " + etag,
+                                         "Cache-Control: " + cacheControl);
+                } else if (status != 200) {
+                    StubServer.writeHead(out, status + " Error");
+                } else {
+                    StubServer.writeHead(out, "200 OK", "Content-Type: application/rss+xml",
+                                         "ETag: " + etag, "Cache-Control: " + cacheControl);
+                    out.write(feed(oldest, episodes));
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void downloadsTheFeed() throws Exception {
+        final FeedFetcher.Result result = fetcher().fetch(null, null);
+
+        assertEquals(FeedFetcher.Source.DOWNLOADED, result.source);
+        assertEquals(urls(2, 1), urls(result.episodes));
+        assertNull(server.getRequests().get(0).get("if-none-match"));
+    }
+
+    @Test
+    public void revalidatesWithSavedValidators() throws Exception {
+        final FeedFetcher first = fetcher();
+        final List<Episode> cached = first.fetch(null, null).episodes;
+        first.saveValidators();
+
+        final FeedFetcher.Result result = fetcher().fetch(cached, null);
+
+        assertEquals(FeedFetcher.Source.REVALIDATED, result.source);
+        assertSame(cached, result.episodes);
+        assertEquals(etag, server.getRequests().get(1).get("if-none-match"));
+    }
+
+    @Test
+    public void savesValidatorsOnlyWhenAsked() throws Exception {
+        final List<Episode> cached = fetcher().fetch(null, null).episodes;
+
+        final FeedFetcher.Result result = fetcher().fetch(cached, null);
+
+        assertEquals(FeedFetcher.Source.DOWNLOADED, result.source);
+        assertNull(server.getRequests().get(1).get("if-none-match"));
+    }
+
+    @Test
+    public void readsValidatorsOnTheFirstFetch() throws Exception {
+        // Created before the validators are saved, but fetching after.
+        final FeedFetcher later = fetcher();
+        final FeedFetcher first = fetcher();
+        final List<Episode> cached = first.fetch(null, null).episodes;
+        first.saveValidators();
+
+        assertEquals(FeedFetcher.Source.REVALIDATED, later.fetch(cached, null).source);
+    }
+
+    @Test
+    public void skipsTheRequestWhileFresh() throws Exception {
+        cacheControl = "max-age=60";
+        final FeedFetcher fetcher = fetcher();
+        final List<Episode> cached = fetcher.fetch(null, null).episodes;
+
+        final FeedFetcher.Result result = fetcher.fetch(cached, null);
+
+        assertEquals(FeedFetcher.Source.HIT, result.source);
+        assertEquals(1, server.getRequests().size());
+    }
+
+    @Test
+    public void parsesOnlyNewEpisodes() throws Exception {
+        final FeedFetcher fetcher = fetcher();
+        final List<Episode> cached = fetcher.fetch(null, null).episodes;
+        episodes = 4;
+        etag = "\"v4\"";
+
+        final List<Episode> parsed = new ArrayList<>();
+        final FeedFetcher.Result result = fetcher.fetch(cached, new AtomParser.EpisodeListener() {
+            public void onEpisode(Episode episode) {
+                parsed.add(episode);
+            }
+        });
+
+        assertEquals(FeedFetcher.Source.DOWNLOADED, result.source);
+        assertEquals(urls(4, 3), urls(parsed));
+        assertEquals(urls(4, 3, 2, 1), urls(result.episodes));
+    }
+
+    @Test
+    public void dropsEpisodesRemovedFromTheFeed() throws Exception {
+        final FeedFetcher fetcher = fetcher();
+        final List<Episode> cached = fetcher.fetch(null, null).episodes;
+        // No known episode is left to stop at, so the whole feed is parsed.
+        oldest = 3;
+        episodes = 4;
+        etag = "\"v4\"";
+
+        final FeedFetcher.Result result = fetcher.fetch(cached, null);
+
+        assertEquals(FeedFetcher.Source.DOWNLOADED, result.source);
+        assertEquals(urls(4, 3), urls(result.episodes));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnServerErrors() throws Exception {
+        status = 500;
+        fetcher().fetch(null, null);
+    }
+
+    private FeedFetcher fetcher() {
+        return new FeedFetcher(server.url("/kodsnack"), validatorFile);
+    }
+
+    /**
+     * Returns a feed with the episodes numbered from one number up to
+     * another, newest first, one a day.
+     */
+    private static byte[] feed(int oldest, int episodes) {
+        final StringBuilder feed = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss version=\"2.0\"><channel>"
+                + "<title>Kodsnack</title>");
+        for (int i = episodes; i >= oldest; i--) {
+            feed.append("<item><title>Kodsnack ").append(i).append("</title>")
+                .append("<pubDate>").append(String.format("%02d", i)).append(" Jan 2015")
+                .append(" 08:00:00 +0000</pubDate>")
+                .append("<enclosure url=\"").append(url(i)).append("\" type=\"audio/mpeg\"/>")
+                .append("<itunes:duration>1:00:00</itunes:duration></item>");
+        }
+        return feed.append("</channel></rss>").toString().getBytes(UTF_8);
+    }
+
+    private static String url(int episode) {
+        return "http://example.com/kodsnack" + episode + ".mp3";
+    }
+
+    private static List<String> urls(int... episodes) {
+        final List<String> urls = new ArrayList<>();
+        for (int episode : episodes) {
+            urls.add(url(episode));
+        }
+        return urls;
+    }
+
+    private static List<String> urls(List<Episode> episodes) {
+        final List<String> urls = new ArrayList<>();
+        for (Episode episode : episodes) {
+            urls.add(episode.url);
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,364 @@
+package se.kodsnack.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the relay against a stand-in for Icecast that drops, stalls, refuses
+ * and ends the stream on cue.
+ */
+public class LiveRelayTest {
+    /** Bytes per second of the stream, as the server says with icy-br: 128 kbit/s. */
+    private static final int BYTE_RATE = 16000;
+
+    /** Bytes sent by each connection, more than the relay's preroll. */
+    private static final int BURST = 10 * BYTE_RATE;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Long> connects = new ArrayList<>(); // When the connections came.
+
+    private StubServer server;   // The stand-in for Icecast.
+    private LiveRelay  relay;    // The relay under test.
+    private Script     script;   // What the server does on each connection.
+    private long       position; // Bytes of the broadcast sent so far.
+
+    /**
+     * What the server does on a connection.
+     */
+    private interface Script {
+        /**
+         * @param connection The number of the connection, from 1.
+         * @param out        The connection to the relay.
+         */
+        void run(int connection, OutputStream out) throws IOException, InterruptedException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(new StubServer.Handler() {
+            public void handle(String path, Map<String, String> headers, OutputStream out)
+                    throws IOException, InterruptedException {
+                final int connection;
+                synchronized (connects) {
+                    connects.add(System.currentTimeMillis());
+                    connection = connects.size();
+                }
+                script.run(connection, out);
+            }
+        });
+        relay = new LiveRelay(server.url("/kodsnack.mp3"), folder.newFile("live"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        relay.stop();
+        server.close();
+    }
+
+    @Test
+    public void reconnectsRightAwayAfterADrop() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out)
+                    throws IOException, InterruptedException {
+                stream(out, BURST);
+                if (connection >= 3) {
+                    hold();
+                }
+            }
+        };
+        relay.start();
+        final Player player = new Player();
+
+        player.await(3 * BURST - LiveRelay.PREROLL * BYTE_RATE / 1000);
+        assertEquals(3, connects());
+        assertTrue(gap(1) < 250);
+        assertTrue(gap(2) < 250);
+        assertEquals(0, player.jumps());
+    }
+
+    @Test
+    public void reconnectsWhenTheStreamStalls() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out)
+                    throws IOException, InterruptedException {
+                stream(out, BURST);
+                if (connection == 1) {
+                    // Longer than the relay waits.
+                    Thread.sleep(7000);
+                } else {
+                    hold();
+                }
+            }
+        };
+        relay.start();
+        final Player player = new Player();
+
+        player.await(2 * BURST - LiveRelay.PREROLL * BYTE_RATE / 1000);
+        assertEquals(2, connects());
+        assertTrue(gap(1) >= 5000 && gap(1) < 7000);
+        assertEquals(0, player.jumps());
+    }
+
+    @Test
+    public void reconnectsWhenThePlayerStalls() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out)
+                    throws IOException, InterruptedException {
+                stream(out, BURST);
+                if (connection == 1) {
+                    Thread.sleep(7000);
+                } else {
+                    hold();
+                }
+            }
+        };
+        relay.start();
+        final Player player = new Player();
+        player.await(1);
+
+        // Too soon after the last data to be a stall of the server.
+        relay.stall();
+        Thread.sleep(1500);
+        assertEquals(1, connects());
+        relay.stall();
+
+        player.await(2 * BURST - LiveRelay.PREROLL * BYTE_RATE / 1000);
+        assertEquals(2, connects());
+        assertTrue(gap(1) < 2500);
+        assertEquals(0, player.jumps());
+    }
+
+    @Test
+    public void reconnectsAfterRefusedConnections() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out)
+                    throws IOException, InterruptedException {
+                if (connection == 1) {
+                    server.setRefusing(true);
+                    stream(out, BURST);
+                } else {
+                    stream(out, BURST);
+                    hold();
+                }
+            }
+        };
+        relay.start();
+        final Player player = new Player();
+        player.await(1);
+
+        Thread.sleep(1500);
+        server.setRefusing(false);
+
+        player.await(2 * BURST - LiveRelay.PREROLL * BYTE_RATE / 1000);
+        assertEquals(2, connects());
+        // Retried after 250, 500 and 1000 ms, and then after another 2 s.
+        assertTrue(gap(1) >= 1500 && gap(1) < 4500);
+        assertEquals(0, player.jumps());
+    }
+
+    @Test
+    public void givesUpWhenTheStreamIsGone() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out) throws IOException {
+                StubServer.writeHead(out, "404 Not Found");
+            }
+        };
+        relay.start();
+
+        assertNull(relay.getContentType());
+        final Player player = new Player();
+        player.join();
+        Thread.sleep(500);
+        assertEquals(1, connects());
+        assertEquals(0, player.received());
+    }
+
+    @Test
+    public void endsTheStreamWhenItsGone() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out) throws IOException {
+                if (connection == 1) {
+                    stream(out, BURST);
+                } else {
+                    StubServer.writeHead(out, "404 Not Found");
+                }
+            }
+        };
+        relay.start();
+
+        assertEquals("audio/mpeg", relay.getContentType());
+        final Player player = new Player();
+        player.join();
+        assertEquals(2, connects());
+        assertTrue(player.received() >= LiveRelay.PREROLL * BYTE_RATE / 1000);
+        assertEquals(0, player.jumps());
+    }
+
+    @Test
+    public void backsOffWhileAttemptsGetNothing() throws Exception {
+        script = new Script() {
+            public void run(int connection, OutputStream out) throws IOException {
+                StubServer.writeHead(out, "503 Service Unavailable");
+            }
+        };
+        relay.start();
+
+        final long end = System.currentTimeMillis() + 20000;
+        while (connects() < 7 && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+        assertEquals(7, connects());
+        // Doubling from 250 ms, up to 4 s.
+        final long[] delays = { 250, 500, 1000, 2000, 4000, 4000 };
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue("gap " + (i + 1) + ": " + gap(i + 1),
+                       gap(i + 1) >= delays[i] - 50 && gap(i + 1) < delays[i] + 500);
+        }
+    }
+
+    /**
+     * Sends the next bytes of the broadcast, with the head of the response.
+     */
+    private void stream(OutputStream out, int bytes) throws IOException {
+        StubServer.writeHead(out, "200 OK", "Content-Type: audio/mpeg",
+                             "icy-br: " + BYTE_RATE * 8 / 1000);
+        final byte[] data = new byte[bytes];
+        synchronized (this) {
+            for (int i = 0; i < bytes; i++) {
+                data[i] = at(position + i);
+            }
+            position += bytes;
+        }
+        out.write(data);
+        out.flush();
+    }
+
+    /**
+     * Keeps the connection open, without sending anything, until the test
+     * is over.
+     */
+    private static void hold() throws InterruptedException {
+        Thread.sleep(60000);
+    }
+
+    private int connects() {
+        synchronized (connects) {
+            return connects.size();
+        }
+    }
+
+    /**
+     * Returns the time between a connection and the one before it (ms).
+     *
+     * @param connection The connection, from 0.
+     */
+    private long gap(int connection) {
+        synchronized (connects) {
+            return connects.get(connection) - connects.get(connection - 1);
+        }
+    }
+
+    /**
+     * Returns the byte of the broadcast at a position.
+     */
+    private static byte at(long position) {
+        return (byte) (position * 7 % 251);
+    }
+
+    /**
+     * A player, served by the relay on a thread of its own.
+     */
+    private class Player implements WritableByteChannel, Runnable {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final Thread                thread   = new Thread(this, "Player");
+
+        Player() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                relay.serve(this, 0);
+            } catch (IOException | InterruptedException e) {
+                // Stopped.
+            }
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) {
+            final int n = src.remaining();
+            while (src.hasRemaining()) {
+                received.write(src.get());
+            }
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() { }
+
+        /**
+         * Waits until some bytes have been received.
+         */
+        synchronized void await(long bytes) throws InterruptedException {
+            final long end = System.currentTimeMillis() + 15000;
+            for (long now = System.currentTimeMillis(); received.size() < bytes && now < end;
+                 now = System.currentTimeMillis()) {
+                wait(end - now);
+            }
+            assertTrue(received.size() + " of " + bytes + " bytes", received.size() >= bytes);
+        }
+
+        /**
+         * Waits until the relay has ended the stream.
+         */
+        void join() throws InterruptedException {
+            thread.join(5000);
+            assertTrue(!thread.isAlive());
+        }
+
+        synchronized int received() {
+            return received.size();
+        }
+
+        /**
+         * Returns the number of places where the stream skips or repeats
+         * part of the broadcast.
+         */
+        synchronized int jumps() {
+            final byte[] data = received.toByteArray();
+            int jumps = 0;
+            for (int i = 1; i < data.length; i++) {
+                if (((data[i] & 0xff) - (data[i - 1] & 0xff) + 251) % 251 != 7) {
+                    jumps++;
+                }
+            }
+            return jumps;
+        }
+    }
+}
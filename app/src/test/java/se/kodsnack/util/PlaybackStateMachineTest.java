@@ -0,0 +1,211 @@
+package se.kodsnack.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import se.kodsnack.util.PlaybackStateMachine.Event;
+import se.kodsnack.util.PlaybackStateMachine.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackStateMachineTest {
+    /** The allowed transitions, by state and event. Everything else is rejected. */
+    private static final Map<State, Map<Event, State>> ALLOWED = new EnumMap<>(State.class);
+
+    static {
+        for (State state : State.values()) {
+            ALLOWED.put(state, new EnumMap<Event, State>(Event.class));
+        }
+        allow(State.IDLE,      Event.PREPARE,  State.PREPARING);
+        allow(State.PREPARING, Event.PREPARED, State.PREPARED);
+        allow(State.PREPARING, Event.STOP,     State.IDLE);
+        allow(State.PREPARING, Event.FAIL,     State.ERROR);
+        allow(State.PREPARED,  Event.PLAY,     State.PLAYING);
+        allow(State.PREPARED,  Event.STOP,     State.IDLE);
+        allow(State.PREPARED,  Event.FAIL,     State.ERROR);
+        allow(State.PLAYING,   Event.PAUSE,    State.PAUSED);
+        allow(State.PLAYING,   Event.COMPLETE, State.IDLE);
+        allow(State.PLAYING,   Event.STOP,     State.IDLE);
+        allow(State.PLAYING,   Event.FAIL,     State.ERROR);
+        allow(State.PAUSED,    Event.PLAY,     State.PLAYING);
+        allow(State.PAUSED,    Event.STOP,     State.IDLE);
+        allow(State.PAUSED,    Event.FAIL,     State.ERROR);
+        allow(State.ERROR,     Event.STOP,     State.IDLE);
+    }
+
+    private static void allow(State from, Event event, State to) {
+        ALLOWED.get(from).put(event, to);
+    }
+
+    /**
+     * A transition the listener was told about.
+     */
+    private static class Change {
+        final State from;
+        final State to;
+        final Event event;
+
+        Change(State from, State to, Event event) {
+            this.from  = from;
+            this.to    = to;
+            this.event = event;
+        }
+    }
+
+    private final List<Change> changes = new ArrayList<>(); // What the listener was told.
+
+    @Test
+    public void allowsOnlyTheTransitionsInTheTable() {
+        for (State state : State.values()) {
+            for (Event event : Event.values()) {
+                assertEquals(state + " + " + event,
+                             ALLOWED.get(state).get(event),
+                             PlaybackStateMachine.next(state, event));
+            }
+        }
+    }
+
+    @Test
+    public void stopsFromEveryStateButIdle() {
+        for (State state : State.values()) {
+            if (state == State.IDLE) {
+                assertNull(PlaybackStateMachine.next(state, Event.STOP));
+            } else {
+                assertEquals(State.IDLE, PlaybackStateMachine.next(state, Event.STOP));
+            }
+        }
+    }
+
+    @Test
+    public void failsFromEveryStateButIdleAndError() {
+        assertNull(PlaybackStateMachine.next(State.IDLE, Event.FAIL));
+        assertNull(PlaybackStateMachine.next(State.ERROR, Event.FAIL));
+        for (State state : new State[] { State.PREPARING, State.PREPARED, State.PLAYING,
+                                         State.PAUSED }) {
+            assertEquals(State.ERROR, PlaybackStateMachine.next(state, Event.FAIL));
+        }
+    }
+
+    @Test
+    public void neverTransitionsToTheSameState() {
+        for (State state : State.values()) {
+            for (Event event : Event.values()) {
+                assertNotEquals(state + " + " + event,
+                                state, PlaybackStateMachine.next(state, event));
+            }
+        }
+    }
+
+    @Test
+    public void goesThroughAnEpisode() {
+        final PlaybackStateMachine machine = machine();
+        for (Event event : new Event[] { Event.PREPARE, Event.PREPARED, Event.PLAY, Event.PAUSE,
+                                         Event.PLAY, Event.COMPLETE }) {
+            assertTrue(event.toString(), machine.fire(event));
+        }
+
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(6, changes.size());
+        assertChange(changes.get(0), State.IDLE, State.PREPARING, Event.PREPARE);
+        assertChange(changes.get(3), State.PLAYING, State.PAUSED, Event.PAUSE);
+        assertChange(changes.get(5), State.PLAYING, State.IDLE, Event.COMPLETE);
+    }
+
+    @Test
+    public void tellsTheListenerAboutAllowedTransitions() {
+        for (State state : State.values()) {
+            for (Map.Entry<Event, State> allowed : ALLOWED.get(state).entrySet()) {
+                final PlaybackStateMachine machine = machineIn(state);
+                changes.clear();
+
+                assertTrue(machine.fire(allowed.getKey()));
+
+                assertEquals(allowed.getValue(), machine.getState());
+                assertEquals(1, changes.size());
+                assertChange(changes.get(0), state, allowed.getValue(), allowed.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void ignoresRejectedEvents() {
+        for (State state : State.values()) {
+            for (Event event : Event.values()) {
+                if (ALLOWED.get(state).containsKey(event)) {
+                    continue;
+                }
+                final PlaybackStateMachine machine = machineIn(state);
+                changes.clear();
+
+                assertFalse(state + " + " + event, machine.fire(event));
+
+                assertEquals(state, machine.getState());
+                assertTrue(changes.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void worksWithoutAListener() {
+        final PlaybackStateMachine machine = new PlaybackStateMachine(null);
+        assertTrue(machine.fire(Event.PREPARE));
+        assertEquals(State.PREPARING, machine.getState());
+    }
+
+    private PlaybackStateMachine machine() {
+        return new PlaybackStateMachine(new PlaybackStateMachine.Listener() {
+            public void onStateChanged(State from, State to, Event event) {
+                changes.add(new Change(from, to, event));
+            }
+        });
+    }
+
+    /**
+     * Returns a machine that has been driven to a state.
+     */
+    private PlaybackStateMachine machineIn(State state) {
+        final PlaybackStateMachine machine = machine();
+        final Event[] path;
+        switch (state) {
+            case IDLE:
+                path = new Event[0];
+                break;
+            case PREPARING:
+                path = new Event[] { Event.PREPARE };
+                break;
+            case PREPARED:
+                path = new Event[] { Event.PREPARE, Event.PREPARED };
+                break;
+            case PLAYING:
+                path = new Event[] { Event.PREPARE, Event.PREPARED, Event.PLAY };
+                break;
+            case PAUSED:
+                path = new Event[] { Event.PREPARE, Event.PREPARED, Event.PLAY, Event.PAUSE };
+                break;
+            case ERROR:
+                path = new Event[] { Event.PREPARE, Event.FAIL };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown state " + state);
+        }
+        for (Event event : path) {
+            assertTrue(machine.fire(event));
+        }
+        assertEquals(state, machine.getState());
+        return machine;
+    }
+
+    private static void assertChange(Change change, State from, State to, Event event) {
+        assertEquals(from, change.from);
+        assertEquals(to, change.to);
+        assertEquals(event, change.event);
+    }
+}
@@ -0,0 +1,141 @@
+package se.kodsnack.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PollSchedulerTest {
+    private static final long START  = 1420070400000L; // A point in time well after the epoch.
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR   = 60 * MINUTE;
+    private static final long WEEK   = 7 * 24 * HOUR;
+
+    private FixedRandom   random;    // Jitter that the tests control.
+    private PollScheduler scheduler; // The scheduler under test.
+
+    @Before
+    public void setUp() {
+        random    = new FixedRandom();
+        scheduler = new PollScheduler(random);
+        scheduler.setForeground(true);
+        // Nothing live, and long enough ago that the listener count changed.
+        scheduler.onSuccess(false, 10, START - HOUR);
+    }
+
+    @Test
+    public void waitsAccordingToWhatIsOn() {
+        assertEquals(PollScheduler.NORMAL, scheduler.nextDelay(START));
+
+        scheduler.onSuccess(true, 10, START);
+        assertEquals(PollScheduler.FAST, scheduler.nextDelay(START));
+
+        scheduler.setForeground(false);
+        assertEquals(PollScheduler.BACKGROUND, scheduler.nextDelay(START));
+
+        scheduler.onSuccess(false, 10, START);
+        assertEquals(PollScheduler.IDLE, scheduler.nextDelay(START + HOUR));
+    }
+
+    @Test
+    public void backsOffUpToTheCap() {
+        long expected = PollScheduler.NORMAL;
+        while (expected < PollScheduler.MAX_BACKOFF) {
+            scheduler.onError();
+            assertEquals(expected, scheduler.nextDelay(START));
+            expected *= 2;
+        }
+        for (int i = 0; i < 100; i++) {
+            scheduler.onError();
+            assertEquals(PollScheduler.MAX_BACKOFF, scheduler.nextDelay(START));
+        }
+
+        // A successful poll starts over.
+        scheduler.onSuccess(false, 10, START);
+        assertEquals(PollScheduler.NORMAL, scheduler.nextDelay(START));
+    }
+
+    @Test
+    public void backsOffFromTheNormalDelayWhenPollingFast() {
+        scheduler.onSuccess(true, 10, START);
+        scheduler.onError();
+        assertEquals(PollScheduler.NORMAL, scheduler.nextDelay(START));
+        scheduler.onError();
+        assertEquals(2 * PollScheduler.NORMAL, scheduler.nextDelay(START));
+    }
+
+    @Test
+    public void jittersByAtMostAFifth() {
+        random.value = 0;
+        assertEquals(PollScheduler.NORMAL * 8 / 10, scheduler.nextDelay(START));
+        random.value = Math.nextAfter(1.0, 0);
+        assertEquals(PollScheduler.NORMAL * 12 / 10, scheduler.nextDelay(START), 1);
+
+        // The same bounds with a real source of randomness, also when capped.
+        final PollScheduler scheduler = new PollScheduler(new Random(42));
+        for (int failures = 0; failures < 20; failures++) {
+            final long delay = failures <= 1 ? PollScheduler.IDLE : PollScheduler.MAX_BACKOFF;
+            for (int i = 0; i < 1000; i++) {
+                final long jittered = scheduler.nextDelay(START);
+                assertTrue(jittered >= delay * 8 / 10);
+                assertTrue(jittered <= delay * 12 / 10);
+            }
+            scheduler.onError();
+        }
+    }
+
+    @Test
+    public void expectsAShowRightAfterTheListenerCountChanged() {
+        scheduler.onSuccess(false, 11, START);
+        assertTrue(scheduler.isShowLikely(START));
+        assertTrue(scheduler.isShowLikely(START + PollScheduler.RECENTLY_CHANGED - 1));
+        assertFalse(scheduler.isShowLikely(START + PollScheduler.RECENTLY_CHANGED));
+    }
+
+    @Test
+    public void expectsAShowRightAfterTheLastOne() {
+        scheduler.setLastLiveAt(START);
+        assertTrue(scheduler.isShowLikely(START + PollScheduler.RECENTLY_LIVE - 1));
+        // Past that, the show's own weekly slot is still open.
+        assertTrue(scheduler.isShowLikely(START + PollScheduler.WEEKLY_SLOT - 1));
+        assertFalse(scheduler.isShowLikely(START + PollScheduler.WEEKLY_SLOT));
+    }
+
+    @Test
+    public void expectsAShowAtTheSameTimeOfTheWeek() {
+        scheduler.setLastLiveAt(START);
+        final long slot = PollScheduler.WEEKLY_SLOT;
+        for (int weeks = 1; weeks <= 3; weeks++) {
+            final long same = START + weeks * WEEK;
+            assertFalse(scheduler.isShowLikely(same - slot));
+            assertTrue(scheduler.isShowLikely(same - slot + 1));
+            assertTrue(scheduler.isShowLikely(same));
+            assertTrue(scheduler.isShowLikely(same + slot - 1));
+            assertFalse(scheduler.isShowLikely(same + slot));
+            assertFalse(scheduler.isShowLikely(same + WEEK / 2));
+        }
+    }
+
+    @Test
+    public void expectsNoShowWhenNoneWasSeen() {
+        assertFalse(scheduler.isShowLikely(START));
+        assertFalse(scheduler.isShowLikely(START + WEEK));
+    }
+
+    /**
+     * Random that returns the same double every time; the middle, i.e. no
+     * jitter, by default.
+     */
+    private static class FixedRandom extends Random {
+        double value = 0.5;
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package se.kodsnack.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class PositionJournalTest {
+    /** Version of the journal format, as written first in the file. */
+    private static final int VERSION = 1;
+
+    private static final String A = "http://example.com/kodsnack1.mp3";
+    private static final String B = "http://example.com/kodsnack2.mp3";
+    private static final String C = "http://example.com/kodsnack3.mp3";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File            file;    // The journal file.
+    private PositionJournal journal; // The journal under test.
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "positions");
+    }
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void keepsPositionsAcrossRestarts() throws Exception {
+        journal = new PositionJournal(file);
+        journal.setPosition(A, 1000);
+        journal.setPosition(B, 2000);
+        reopen();
+        journal.setPosition(A, 3000);
+        reopen();
+
+        assertEquals(3000, journal.getPosition(A));
+        assertEquals(2000, journal.getPosition(B));
+        assertEquals(0, journal.getPosition(C));
+    }
+
+    @Test
+    public void dropsATruncatedLastRecord() throws Exception {
+        final byte[] whole = records(VERSION, A, 1000, B, 2000);
+        // B's position cut off in the middle, as by a crash while appending.
+        write(Arrays.copyOf(whole, whole.length - 5));
+
+        journal = new PositionJournal(file);
+        assertEquals(1000, journal.getPosition(A));
+        assertEquals(0, journal.getPosition(B));
+
+        // Appending after the partial record would make the rest unreadable.
+        journal.setPosition(C, 3000);
+        reopen();
+        assertEquals(1000, journal.getPosition(A));
+        assertEquals(0, journal.getPosition(B));
+        assertEquals(3000, journal.getPosition(C));
+        assertEquals(records(VERSION, A, 1000, C, 3000).length, file.length());
+    }
+
+    @Test
+    public void appendsAfterACompactionToTheHeaderOnly() throws Exception {
+        final byte[] whole = records(VERSION, A, 1000, B, 2000);
+        write(Arrays.copyOf(whole, whole.length - 5));
+        journal = new PositionJournal(file);
+
+        // The truncated journal is compacted on the first write, with nothing left in it.
+        journal.clearPosition(A);
+        journal.flush();
+        reopen();
+        assertEquals(records(VERSION).length, file.length());
+
+        journal.setPosition(C, 3000);
+        reopen();
+        assertEquals(3000, journal.getPosition(C));
+        assertEquals(records(VERSION, C, 3000).length, file.length());
+    }
+
+    @Test
+    public void clearsAPositionBeforeTheJournalIsRead() throws Exception {
+        write(records(VERSION, A, 1000, B, 2000));
+
+        journal = new PositionJournal(file);
+        journal.clearPosition(A);
+        assertEquals(0, journal.getPosition(A));
+        assertEquals(2000, journal.getPosition(B));
+
+        reopen();
+        assertEquals(0, journal.getPosition(A));
+        assertEquals(2000, journal.getPosition(B));
+    }
+
+    @Test
+    public void ignoresAJournalOfAnotherVersion() throws Exception {
+        write(records(VERSION + 1, A, 1000));
+
+        journal = new PositionJournal(file);
+        assertEquals(0, journal.getPosition(A));
+
+        journal.setPosition(B, 2000);
+        reopen();
+        assertEquals(0, journal.getPosition(A));
+        assertEquals(2000, journal.getPosition(B));
+    }
+
+    /**
+     * Closes the journal, which writes what's pending, and reads it again.
+     */
+    private void reopen() {
+        journal.close();
+        journal = new PositionJournal(file);
+    }
+
+    /**
+     * Returns a journal: a version followed by records of URLs and
+     * positions.
+     */
+    private static byte[] records(int version, Object... records) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(version);
+        for (int i = 0; i < records.length; i += 2) {
+            out.writeUTF((String) records[i]);
+            out.writeLong(((Number) records[i + 1]).longValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void write(byte[] data) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package se.kodsnack.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Rfc822DateTest {
+    /** Dates that SimpleDateFormat parses too, as the feed writes them. */
+    private static final String[] DATES = {
+        "Fri, 12 Dec 2014 09:05:51 +0100",
+        "Mon, 05 Jan 2015 20:00:00 +0000",
+        "Sun, 29 Mar 2015 01:30:00 -0700",
+        "Thu, 31 Dec 2015 23:59:59 +1400",
+        "Mon, 29 Feb 2016 12:00:00 -1200",
+        "Wed, 01 Jan 1969 00:00:00 +0000",
+        "Sat, 01 Jan 2000 00:00:00 +0530",
+        "Tue, 13 Jan 2015 08:00:00 GMT",
+        "Tue, 13 Jan 2015 08:00:00 EST",
+        "Tue, 14 Jul 2015 08:00:00 EDT",
+        "Tue, 13 Jan 2015 08:00:00 CST",
+        "Tue, 14 Jul 2015 08:00:00 CDT",
+        "Tue, 13 Jan 2015 08:00:00 MST",
+        "Tue, 14 Jul 2015 08:00:00 MDT",
+        "Tue, 13 Jan 2015 08:00:00 PST",
+        "Tue, 14 Jul 2015 08:00:00 PDT",
+        "Fri, 17 Apr 2015 10:00:00 +0200",
+        "Fri, 08 May 2015 10:00:00 +0200",
+        "Mon, 15 Jun 2015 10:00:00 +0200",
+        "Mon, 17 Aug 2015 10:00:00 +0200",
+        "Mon, 14 Sep 2015 10:00:00 +0200",
+        "Mon, 12 Oct 2015 10:00:00 +0200",
+        "Mon, 16 Nov 2015 10:00:00 +0100",
+        "Mon, 16 Feb 2015 10:00:00 +0100",
+    };
+
+    /** Dates that are malformed, or use what the parser doesn't support. */
+    private static final String[] MALFORMED = {
+        "",
+        "   ",
+        "Fri,",
+        "Fri, 12",
+        "Fri, 12 De",
+        "Fri, 12 Dec",
+        "Fri, 12 Dec 2014",
+        "Fri, 12 Dec 201 09:05:51 +0100",
+        "Fri, 12 Dec 20145 09:05:51 +0100",
+        "Fri, 00 Dec 2014 09:05:51 +0100",
+        "Fri, 32 Dec 2014 09:05:51 +0100",
+        "Fri, 12 Dez 2014 09:05:51 +0100",
+        "Fri, 12 Dec 2014 9:05:51 +0100",
+        "Fri, 12 Dec 2014 09:0",
+        "Fri, 12 Dec 2014 09:05:5",
+        "Fri, 12 Dec 2014 24:05:51 +0100",
+        "Fri, 12 Dec 2014 09:60:51 +0100",
+        "Fri, 12 Dec 2014 09:05:61 +0100",
+        "Fri, 12 Dec 2014 09-05-51 +0100",
+        "Fri, 12 Dec 2014 09:05:51 +01",
+        "Fri, 12 Dec 2014 09:05:51 +01x0",
+        "Fri, 12 Dec 2014 09:05:51 CET",
+        "Fri, 12 Dec 2014 09:05:51 XST",
+        "Fri, 12 Dec 2014 09:05:51 Europe/Stockholm",
+        "2014-12-12T09:05:51+01:00",
+    };
+
+    private Locale   defaultLocale; // The default locale before the test.
+    private TimeZone defaultZone;   // The default time zone before the test.
+
+    @Before
+    public void setUp() {
+        defaultLocale = Locale.getDefault();
+        defaultZone   = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void parsesLikeSimpleDateFormat() throws ParseException {
+        for (String date : DATES) {
+            assertEquals(date, simpleDateFormat(date), Rfc822Date.parse(date));
+        }
+    }
+
+    @Test
+    public void ignoresTheDefaultLocaleAndZone() throws ParseException {
+        // SimpleDateFormat with the default locale fails on the English names on Swedish devices.
+        Locale.setDefault(new Locale("sv", "SE"));
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Stockholm"));
+        for (String date : DATES) {
+            assertEquals(date, simpleDateFormat(date), Rfc822Date.parse(date));
+        }
+    }
+
+    @Test
+    public void parsesFromTheMiddleOfABuffer() throws ParseException {
+        final String date = "Fri, 12 Dec 2014 09:05:51 +0100";
+        final char[] buffer = ("<pubDate>" + date + "</pubDate>").toCharArray();
+        assertEquals(simpleDateFormat(date), Rfc822Date.parse(buffer, 9, date.length()));
+    }
+
+    @Test
+    public void parsesWhatRfc2822Allows() throws ParseException {
+        final long expected = utc(2014, 12, 12, 8, 5, 0);
+        assertEquals(expected, Rfc822Date.parse("12 Dec 2014 08:05 +0000"));
+        assertEquals(expected, Rfc822Date.parse("Fri,12 Dec 2014 08:05:00 +0000"));
+        assertEquals(expected, Rfc822Date.parse("  fri, 12 dec 2014 08:05:00 gmt  "));
+        assertEquals(expected, Rfc822Date.parse("Fri, 12\tDec\r\n 2014 08:05:00 UT"));
+        assertEquals(expected, Rfc822Date.parse("Fri, 12 Dec 14 08:05:00 +0000"));
+        assertEquals(expected, Rfc822Date.parse("Fri, 12 Dec 2014 08:05:00"));
+        // Military zones are treated as UTC.
+        assertEquals(expected, Rfc822Date.parse("Fri, 12 Dec 2014 08:05:00 Z"));
+        assertEquals(expected, Rfc822Date.parse("Fri, 12 Dec 2014 08:05:00 A"));
+        assertEquals(utc(2014, 12, 2, 8, 5, 0), Rfc822Date.parse("Tue, 2 Dec 2014 08:05 +0000"));
+        assertEquals(utc(1999, 12, 12, 8, 5, 0),
+                     Rfc822Date.parse("Sun, 12 Dec 99 08:05:00 +0000"));
+        // A leap second, which is the next minute to the clock.
+        assertEquals(expected + 60 * 1000, Rfc822Date.parse("Fri, 12 Dec 2014 08:05:60 +0000"));
+    }
+
+    @Test
+    public void rejectsMalformedDates() {
+        for (String date : MALFORMED) {
+            try {
+                Rfc822Date.parse(date);
+                fail("Parsed " + date);
+            } catch (ParseException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static long simpleDateFormat(String date) throws ParseException {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z",
+                                                             Locale.US);
+        format.setLenient(false);
+        return format.parse(date).getTime();
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second) {
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+}
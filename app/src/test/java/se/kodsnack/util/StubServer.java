@@ -0,0 +1,177 @@
+package se.kodsnack.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server on the loopback interface, for testing the classes
+ * that talk to the network against servers that misbehave in controlled
+ * ways.
+ *
+ * Every connection is handed to the handler on a thread of its own, and
+ * closed when the handler returns, so responses end with the connection
+ * like HTTP/1.0 responses without a length. The server can stop accepting
+ * connections for a while, so that connecting is refused.
+ */
+final class StubServer implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Answers requests.
+     */
+    interface Handler {
+        /**
+         * Answers a request, on the connection's own thread.
+         *
+         * @param path    The path of the request, with the query.
+         * @param headers The headers of the request, with lower case names.
+         * @param out     The connection to the client.
+         */
+        void handle(String path, Map<String, String> headers, OutputStream out)
+                throws IOException, InterruptedException;
+    }
+
+    private final Handler                   handler;  // Answers the requests.
+    private final List<Map<String, String>> requests; // Headers of the requests so far.
+    private final int                       port;     // The port, kept while refusing.
+    private ServerSocket                    server;   // The listening socket, null while refusing.
+
+    /**
+     * Creates a server on a free port and starts accepting connections.
+     *
+     * @param handler Answers the requests.
+     */
+    StubServer(Handler handler) throws IOException {
+        this.handler  = handler;
+        this.requests = new ArrayList<>();
+        this.server   = listen(0);
+        this.port     = server.getLocalPort();
+        accept(server);
+    }
+
+    /**
+     * Returns the URL of a path on the server.
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + port + path;
+    }
+
+    /**
+     * Returns the headers of the requests so far, oldest first.
+     */
+    synchronized List<Map<String, String>> getRequests() {
+        return new ArrayList<>(requests);
+    }
+
+    /**
+     * Stops or starts accepting connections. While stopped, connecting is
+     * refused.
+     */
+    synchronized void setRefusing(boolean refusing) throws IOException {
+        if (refusing && server != null) {
+            server.close();
+            server = null;
+        } else if (!refusing && server == null) {
+            server = listen(port);
+            accept(server);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        setRefusing(true);
+    }
+
+    /**
+     * Writes the head of a response.
+     *
+     * @param out     The connection to the client.
+     * @param status  The status, e.g. "200 OK".
+     * @param headers The headers, e.g. "Content-Type: audio/mpeg".
+     */
+    static void writeHead(OutputStream out, String status, String... headers)
+            throws IOException {
+        final StringBuilder head = new StringBuilder("HTTP/1.0 ").append(status).append("\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        out.write(head.append("\r\n").toString().getBytes(ASCII));
+        out.flush();
+    }
+
+    private static ServerSocket listen(int port) throws IOException {
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        return server;
+    }
+
+    private void accept(final ServerSocket server) {
+        start(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        start(new Runnable() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private void serve(Socket socket) {
+        try {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), ASCII));
+            final String line = in.readLine();
+            if (line == null) {
+                return;
+            }
+            final Map<String, String> headers = new HashMap<>();
+            for (String header = in.readLine(); header != null && !header.isEmpty();
+                 header = in.readLine()) {
+                final int colon = header.indexOf(':');
+                headers.put(header.substring(0, colon).trim().toLowerCase(Locale.US),
+                            header.substring(colon + 1).trim());
+            }
+            synchronized (this) {
+                requests.add(headers);
+            }
+            handler.handle(line.split(" ")[1], headers, socket.getOutputStream());
+        } catch (IOException | InterruptedException e) {
+            // The client went away, or the handler dropped the connection.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closed already.
+            }
+        }
+    }
+
+    private static void start(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "StubServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,67 @@
+package se.kodsnack.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per item cost of parsing the pubDates of a 500 item feed, with a new
+ * SimpleDateFormat per item (as AtomParser used to do) and with
+ * {@link Rfc822Date}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DateParseBenchmark {
+    private static final int ITEMS = 500;
+
+    private String[] dates; // The pubDates of the feed.
+    private char[][] chars; // The pubDates as the XML parser hands them out.
+
+    @Setup
+    public void setUp() {
+        dates = FeedFixtures.pubDates(ITEMS);
+        chars = new char[ITEMS][];
+        for (int i = 0; i < ITEMS; i++) {
+            chars[i] = dates[i].toCharArray();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long simpleDateFormat() throws ParseException {
+        long sum = 0;
+        for (String date : dates) {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z",
+                                                                 Locale.US);
+            sum += format.parse(date).getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long rfc822Date() throws ParseException {
+        long sum = 0;
+        for (char[] date : chars) {
+            sum += Rfc822Date.parse(date, 0, date.length);
+        }
+        return sum;
+    }
+}
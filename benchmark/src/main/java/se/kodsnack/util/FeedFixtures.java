@@ -0,0 +1,93 @@
+package se.kodsnack.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Builds Kodsnack feeds of arbitrary size for the benchmarks.
+ *
+ * The feeds are put together from the channel and item templates in
+ * resources/fixtures, which follow the layout of the real feed, with one
+ * episode per week going back from the newest one.
+ */
+final class FeedFixtures {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Publishing date of the newest episode (ms since epoch). */
+    private static final long NEWEST = 1418371551000L;
+
+    private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+
+    private FeedFixtures() { }
+
+    /**
+     * Returns an RSS feed with a number of items, newest first.
+     *
+     * @param items The number of items in the feed.
+     * @return The feed as UTF-8.
+     */
+    static byte[] feed(int items) throws IOException {
+        final String channel = resource("channel.xml");
+        final String item    = resource("item.xml");
+        final String[] dates = pubDates(items);
+
+        final StringBuilder sb = new StringBuilder(items * item.length());
+        for (int i = 0; i < items; i++) {
+            final int number = items - i;
+            sb.append(item.replace("${number}", Integer.toString(number))
+                          .replace("${date}", dates[i])
+                          .replace("${duration}", duration(number)));
+        }
+        return channel.replace("${items}", sb).getBytes(UTF_8);
+    }
+
+    /**
+     * Returns the pubDates of a number of weekly episodes, newest first, in
+     * the format used by the feed.
+     *
+     * @param items The number of dates.
+     * @return The dates.
+     */
+    static String[] pubDates(int items) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z",
+                                                             Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("Europe/Stockholm"));
+
+        final String[] dates = new String[items];
+        for (int i = 0; i < items; i++) {
+            dates[i] = format.format(new Date(NEWEST - i * WEEK));
+        }
+        return dates;
+    }
+
+    private static String duration(int number) {
+        final int minutes = 40 + number % 50;
+        return String.format(Locale.US, "%d:%02d:%02d", minutes / 60, minutes % 60, number % 60);
+    }
+
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    private static String resource(String name) throws IOException {
+        final InputStream in = FeedFixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
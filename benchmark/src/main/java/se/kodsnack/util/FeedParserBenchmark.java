@@ -0,0 +1,108 @@
+package se.kodsnack.util;
+
+import android.util.Xml;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link AtomParser} pipeline over feeds of increasing size.
+ *
+ * Run with the GC profiler (the default for the jmh task) to get the
+ * allocation rate; gc.alloc.rate.norm is the number of bytes allocated per
+ * parsed feed, or per first episode for timeToFirstEpisode().
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class FeedParserBenchmark {
+    /** The number of items in the feed. */
+    @Param({"50", "500", "5000"})
+    public int items;
+
+    private byte[] feed; // The feed to parse.
+
+    @Setup
+    public void setUp() throws IOException {
+        feed = FeedFixtures.feed(items);
+    }
+
+    /**
+     * The whole pipeline, as used by the app.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Episode> parse() throws XmlPullParserException, IOException, ParseException {
+        return AtomParser.parse(new ByteArrayInputStream(feed));
+    }
+
+    /**
+     * readFeed() on a parser positioned at the root element.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Episode> readFeed() throws XmlPullParserException, IOException, ParseException {
+        final XmlPullParser parser = newParser();
+        return new AtomParser(null, null).readFeed(parser);
+    }
+
+    /**
+     * readChannel() on a parser positioned at the channel element, which
+     * leaves out the handling of the root element.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<Episode> readChannel() throws XmlPullParserException, IOException, ParseException {
+        final XmlPullParser parser = newParser();
+        parser.nextTag();
+        return new AtomParser(null, null).readChannel(parser);
+    }
+
+    /**
+     * Time from starting to parse until the first episode has been read by
+     * readItem(), i.e. how long the list has to wait for its first row.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Episode timeToFirstEpisode()
+            throws XmlPullParserException, IOException, ParseException {
+        final XmlPullParser parser = newParser();
+        while (parser.next() != XmlPullParser.START_TAG || !"item".equals(parser.getName())) {
+            // Skip the channel's metadata.
+        }
+        return new AtomParser(null, null).readItem(parser);
+    }
+
+    /**
+     * Returns a parser over the feed, positioned at the root element.
+     */
+    private XmlPullParser newParser() throws XmlPullParserException, IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(new ByteArrayInputStream(feed), null);
+        parser.nextTag();
+        return parser;
+    }
+}
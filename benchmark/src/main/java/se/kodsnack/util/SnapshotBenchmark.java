@@ -0,0 +1,91 @@
+package se.kodsnack.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilding a 1000 episode catalogue from local storage, from an
+ * {@link EpisodeCache} snapshot and by parsing the feed's XML again.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SnapshotBenchmark {
+    private static final int ITEMS = 1000;
+
+    private File         xmlFile;   // The feed as XML.
+    private File         cacheFile; // The feed's episodes as a snapshot.
+    private EpisodeCache cache;     // Cache reading cacheFile.
+    private byte[]       snapshot; // The snapshot in memory.
+
+    @Setup
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void setUp() throws IOException, XmlPullParserException, ParseException {
+        final byte[] feed = FeedFixtures.feed(ITEMS);
+        final List<Episode> episodes = AtomParser.parse(new ByteArrayInputStream(feed));
+
+        xmlFile = File.createTempFile("feed", ".xml");
+        final FileOutputStream out = new FileOutputStream(xmlFile);
+        try {
+            out.write(feed);
+        } finally {
+            out.close();
+        }
+
+        cacheFile = File.createTempFile("episodes", ".cache");
+        cache = new EpisodeCache(cacheFile);
+        cache.write(episodes);
+        snapshot = EpisodeSnapshot.encode(episodes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        xmlFile.delete();
+        cacheFile.delete();
+    }
+
+    @Benchmark
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public List<Episode> parseXmlFile() throws IOException, XmlPullParserException, ParseException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(xmlFile));
+        try {
+            return AtomParser.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public List<Episode> readSnapshotFile() {
+        return cache.read();
+    }
+
+    @Benchmark
+    public List<Episode> decodeSnapshot() {
+        return EpisodeSnapshot.decode(snapshot, snapshot.length);
+    }
+}
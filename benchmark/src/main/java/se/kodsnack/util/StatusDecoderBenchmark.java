@@ -0,0 +1,101 @@
+package se.kodsnack.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding an Icecast status response body into a {@link LiveStatus}, by
+ * building a JSONObject tree like Volley's JsonObjectRequest did and with the
+ * streaming {@link LiveStatusDecoder}. Run with the GC profiler (the
+ * default for the jmh task); gc.alloc.rate.norm is the number of bytes
+ * allocated per decoded status, i.e. per poll.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatusDecoderBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"status-single.json", "status-multi.json"})
+    public String fixture;
+
+    private byte[] body; // The response body.
+
+    @Setup
+    @SuppressWarnings("TryFinallyCanBeTryWithResources")
+    public void setUp() throws IOException {
+        final InputStream in = getClass().getResourceAsStream("/fixtures/" + fixture);
+        if (in == null) {
+            throw new IOException("Missing fixture " + fixture);
+        }
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            body = out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public LiveStatus jsonObject() throws JSONException {
+        final JSONObject icestats = new JSONObject(new String(body, UTF_8))
+                .getJSONObject("icestats");
+        if (!icestats.has("source")) {
+            return LiveStatus.OFFLINE;
+        }
+
+        // Like the decoder, use the first source with a listen URL.
+        final Object sources = icestats.get("source");
+        JSONObject source = null;
+        if (sources instanceof JSONObject) {
+            source = (JSONObject) sources;
+        } else {
+            final JSONArray array = (JSONArray) sources;
+            for (int i = 0; i < array.length() && source == null; i++) {
+                if (!array.getJSONObject(i).isNull("listenurl")) {
+                    source = array.getJSONObject(i);
+                }
+            }
+        }
+        if (source == null) {
+            return LiveStatus.OFFLINE;
+        }
+        return new LiveStatus(source.optString("title", null),
+                              source.optString("server_name", null),
+                              source.optString("listenurl", null),
+                              source.optInt("listeners", -1));
+    }
+
+    @Benchmark
+    public LiveStatus streaming() throws IOException {
+        return LiveStatusDecoder.decode(new StringReader(new String(body, UTF_8)));
+    }
+}